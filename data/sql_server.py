@@ -2,30 +2,67 @@
 """
 Basic Python Server for STOMP Assignment – Stage 3.3
 Updated to match Java Database.java schema requirements.
+
+Usage: sql_server.py [port] [--fast] [--commit-every N] [--commit-ms M] [--readers K]
+
+By default every statement opens its own SQLite connection and is committed on its own.
+With --fast a single writer connection in WAL mode executes all the writes and commits them in groups
+(at the latest after N statements or M milliseconds), and SELECTs go through a pool of K read-only connections.
+
+Besides a single statement, a request may be a batch: "BATCH" followed by the statements, each preceded by
+the \x1f separator. The statements are executed in order and the batch stops at the first one that fails,
+so a client knows exactly which statements took effect. The response is "BATCH" followed by the result of
+every executed statement, each preceded by \x1f - the last result is the error if the batch stopped early.
+A batch may carry an id chosen by the client, as "BATCH#<id>". A batch id is executed once: a client that got no
+response sends the same batch again, and gets the results of the first execution (waiting for it if it is still
+running) - the last BATCH_IDS_KEPT ids are remembered.
+
+A SELECT may also be sent as "ROWS" + \x1f + the query, to get its result typed and streamed instead of as one
+'|' separated string of Python tuples. The response is "ROWS", then the column names as one record and then
+one record per row, every record preceded by \x1e and its fields separated by \x1f. A field is a type letter
+and the value: N (null), I (integer), R (real), T (text) or B (blob, in hex). In names and texts the characters
+\\, \x1f, \x1e and \0 are escaped as \\\\, \\f, \\r and \\0. A record that starts with "ERROR" means the query
+failed after some rows were already sent. The rows are fetched and sent in chunks, so the server never holds
+the whole result - a client that wants bounded memory on its side should page with LIMIT.
 """
 
+import collections
+import queue
 import socket
 import sys
 import threading
+import time
 import sqlite3
 import os
 
 SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 
-def recv_null_terminated(sock: socket.socket) -> str:
+BATCH_COMMAND = "BATCH"
+BATCH_SEPARATOR = "\x1f"
+BATCH_ID_SEPARATOR = "#"
+BATCH_IDS_KEPT = 10000
+ROWS_COMMAND = "ROWS"
+FIELD_SEPARATOR = "\x1f"
+RECORD_SEPARATOR = "\x1e"
+ROWS_CHUNK = 256
+
+def recv_null_terminated(sock: socket.socket, pending: bytearray) -> str:
     """
     Helper function to read data until \0 is found.
+    A client may send several requests without waiting for the responses (the Java server pipelines them),
+    so whatever arrives after the \0 is kept in `pending` for the next call instead of being thrown away.
     """
-    data = b""
     while True:
-        chunk = sock.recv(1024)
+        end = pending.find(b"\0")
+        if end != -1:
+            msg = bytes(pending[:end])
+            del pending[:end + 1]
+            return msg.decode("utf-8", errors="replace")
+        chunk = sock.recv(4096)
         if not chunk:
             return ""
-        data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+        pending += chunk
 
 def init_database():
     """
@@ -104,47 +141,282 @@ def execute_sql_query(sql_query: str) -> str:
     cursor = conn.cursor()
     try:
         cursor.execute(sql_query)
-        rows = cursor.fetchall()
-        
-        # 1. Start with SUCCESS
-        result_parts = ["SUCCESS"]
-        
-        # 2. Add each row as a string representation
-        for row in rows:
-            result_parts.append(str(row))
-            
-        # 3. Join everything with the pipe character '|'
-        return "|".join(result_parts)
-        
+        return format_rows(cursor.fetchall())
     except Exception as e:
         return f"ERROR: {str(e)}"
     finally:
         conn.close()
 
 
-def handle_client(client_socket: socket.socket, addr):
+def format_rows(rows) -> str:
+    # 1. Start with SUCCESS
+    result_parts = ["SUCCESS"]
+
+    # 2. Add each row as a string representation
+    for row in rows:
+        result_parts.append(str(row))
+
+    # 3. Join everything with the pipe character '|'
+    return "|".join(result_parts)
+
+
+def escape_text(text: str) -> str:
+    return (text.replace("\\", "\\\\").replace(FIELD_SEPARATOR, "\\f")
+            .replace(RECORD_SEPARATOR, "\\r").replace("\0", "\\0"))
+
+
+def encode_field(value) -> str:
+    if value is None:
+        return "N"
+    if isinstance(value, bool) or isinstance(value, int):
+        return "I" + str(int(value))
+    if isinstance(value, float):
+        return "R" + repr(value)
+    if isinstance(value, bytes):
+        return "B" + value.hex()
+    return "T" + escape_text(str(value))
+
+
+def stream_rows(conn, sql_query: str):
+    """
+    Runs a ROWS query and yields its response in chunks of ROWS_CHUNK rows.
+    Errors before the first row are a plain "ERROR: ..." response, later ones an ERROR record.
+    """
+    try:
+        cursor = conn.execute(sql_query)
+        header = FIELD_SEPARATOR.join(escape_text(column[0]) for column in cursor.description or [])
+        rows = cursor.fetchmany(ROWS_CHUNK)
+    except Exception as e:
+        yield f"ERROR: {str(e)}"
+        return
+
+    yield ROWS_COMMAND + RECORD_SEPARATOR + header
+    while rows:
+        yield "".join(RECORD_SEPARATOR + FIELD_SEPARATOR.join(encode_field(value) for value in row)
+                      for row in rows)
+        try:
+            rows = cursor.fetchmany(ROWS_CHUNK)
+        except Exception as e:
+            yield RECORD_SEPARATOR + f"ERROR: {escape_text(str(e))}"
+            return
+
+
+def execute_rows_query(sql_query: str):
+    conn = sqlite3.connect(DB_FILE)
+    try:
+        yield from stream_rows(conn, sql_query)
+    finally:
+        conn.close()
+
+
+def is_query(sql: str) -> bool:
+    # Simple heuristic: Check if it starts with SELECT (case insensitive)
+    return sql.strip().upper().startswith("SELECT")
+
+
+class FastStore:
+    """
+    The --fast mode: one writer connection that owns all the writes, and a pool of read-only connections.
+
+    The writer thread executes the write requests in arrival order inside one open transaction and commits it
+    when no more requests are waiting, after `commit_every` statements, or `commit_ms` after the first
+    uncommitted one - whichever comes first. A write is answered only after its commit, so a client that got
+    SUCCESS can read its own write. WAL mode lets the readers run concurrently with the writer.
+    """
+
+    def __init__(self, db_file: str, commit_every: int, commit_ms: int, readers: int):
+        self.commit_every = commit_every
+        self.commit_seconds = commit_ms / 1000.0
+        self.requests = queue.Queue()
+
+        # isolation_level=None - the transactions are managed explicitly by the writer
+        self.writer = sqlite3.connect(db_file, isolation_level=None, check_same_thread=False)
+        self.writer.execute("PRAGMA journal_mode=WAL")
+        self.writer.execute("PRAGMA synchronous=NORMAL")
+
+        self.readers = queue.Queue()
+        for _ in range(readers):
+            self.readers.put(sqlite3.connect(f"file:{db_file}?mode=ro", uri=True, check_same_thread=False))
+
+        threading.Thread(target=self._write_loop, name="sqlite-writer", daemon=True).start()
+
+    def execute(self, statements: list) -> list:
+        """Executes the statements in order, until one fails, and returns their results."""
+        if all(is_query(sql) for sql in statements):
+            return execute_until_error(statements, self._read)
+        job = {"statements": statements, "results": None, "done": threading.Event()}
+        self.requests.put(job)
+        job["done"].wait()
+        return job["results"]
+
+    def read_rows(self, sql: str):
+        """Streams a ROWS query on one of the read-only connections, which is kept until the stream ends."""
+        conn = self.readers.get()
+        try:
+            yield from stream_rows(conn, sql)
+        finally:
+            self.readers.put(conn)
+
+    def _read(self, sql: str) -> str:
+        conn = self.readers.get()
+        try:
+            return format_rows(conn.execute(sql).fetchall())
+        except Exception as e:
+            return f"ERROR: {str(e)}"
+        finally:
+            self.readers.put(conn)
+
+    def _write_loop(self):
+        waiting = []
+        uncommitted = 0
+        first_at = 0.0
+        while True:
+            try:
+                if waiting:
+                    job = self.requests.get(timeout=max(0.0, first_at + self.commit_seconds - time.monotonic()))
+                else:
+                    job = self.requests.get()
+            except queue.Empty:
+                job = None
+
+            if job is not None:
+                if not waiting:
+                    self.writer.execute("BEGIN")
+                    first_at = time.monotonic()
+                job["results"] = execute_until_error(job["statements"], self._write)
+                waiting.append(job)
+                uncommitted += len(job["statements"])
+
+            if waiting and (job is None
+                            or self.requests.empty()
+                            or uncommitted >= self.commit_every
+                            or time.monotonic() - first_at >= self.commit_seconds):
+                self._commit(waiting)
+                waiting = []
+                uncommitted = 0
+
+    def _write(self, sql: str) -> str:
+        try:
+            cursor = self.writer.execute(sql)
+            return format_rows(cursor.fetchall()) if is_query(sql) else "SUCCESS"
+        except Exception as e:
+            # a failing statement is undone by SQLite on its own, the rest of the transaction stays
+            return f"ERROR: {str(e)}"
+
+    def _commit(self, jobs: list):
+        try:
+            self.writer.execute("COMMIT")
+        except Exception as e:
+            try:
+                self.writer.execute("ROLLBACK")
+            except Exception:
+                pass
+            for job in jobs:
+                job["results"] = [f"ERROR: commit failed: {str(e)}"]
+        for job in jobs:
+            job["done"].set()
+
+
+class BatchIds:
+    """
+    The results of the last batches that carried an id, so a batch that is sent again is not executed again.
+    """
+
+    def __init__(self, kept: int):
+        self.kept = kept
+        self.lock = threading.Lock()
+        self.batches = collections.OrderedDict()  # id -> {"results", "done"}, oldest first
+
+    def execute(self, batch_id: str, statements: list, execute) -> list:
+        with self.lock:
+            entry = self.batches.get(batch_id)
+            first = entry is None
+            if first:
+                entry = {"results": None, "done": threading.Event()}
+                self.batches[batch_id] = entry
+                while len(self.batches) > self.kept:
+                    self.batches.popitem(last=False)
+        if not first:
+            entry["done"].wait()
+            return entry["results"]
+        try:
+            entry["results"] = execute(statements)
+        except Exception as e:
+            entry["results"] = [f"ERROR: {str(e)}"]
+        finally:
+            entry["done"].set()
+        return entry["results"]
+
+
+BATCH_IDS = BatchIds(BATCH_IDS_KEPT)
+
+
+def execute_until_error(statements: list, execute) -> list:
+    results = []
+    for sql in statements:
+        results.append(execute(sql))
+        if results[-1].startswith("ERROR"):
+            break
+    return results
+
+
+def execute_statement(sql: str) -> str:
+    # Decide if it's a Query (SELECT) or Command (INSERT/UPDATE/DELETE)
+    if is_query(sql):
+        return execute_sql_query(sql)
+    return execute_sql_command(sql)
+
+
+def handle_request(message: str, store):
+    """
+    Executes one request (a single statement, a BATCH or a ROWS query) and returns its response,
+    either as one string or as an iterable of the chunks of a string.
+    """
+    if message.startswith(ROWS_COMMAND + FIELD_SEPARATOR):
+        sql = message[len(ROWS_COMMAND) + 1:]
+        return store.read_rows(sql) if store is not None else execute_rows_query(sql)
+
+    if message.startswith(BATCH_COMMAND + BATCH_SEPARATOR) or message.startswith(BATCH_COMMAND + BATCH_ID_SEPARATOR):
+        parts = message.split(BATCH_SEPARATOR)
+        batch_id = parts[0][len(BATCH_COMMAND) + 1:] if parts[0] != BATCH_COMMAND else None
+        if store is not None:
+            execute = store.execute
+        else:
+            execute = lambda statements: execute_until_error(statements, execute_statement)
+        if batch_id is None:
+            results = execute(parts[1:])
+        else:
+            results = BATCH_IDS.execute(batch_id, parts[1:], execute)
+        return BATCH_COMMAND + "".join(BATCH_SEPARATOR + result for result in results)
+
+    if store is not None:
+        return store.execute([message])[0]
+    return execute_statement(message)
+
+
+def handle_client(client_socket: socket.socket, addr, store):
     print(f"[{SERVER_NAME}] Client connected from {addr}")
 
+    pending = bytearray()
     try:
         while True:
-            message = recv_null_terminated(client_socket)
+            message = recv_null_terminated(client_socket, pending)
             if message == "":
                 break
 
-            print(f"[{SERVER_NAME}] Received SQL: {message}")
+            # Printing every statement would cost more than executing it in the fast mode
+            if store is None:
+                print(f"[{SERVER_NAME}] Received SQL: {message}")
 
-            # Decide if it's a Query (SELECT) or Command (INSERT/UPDATE/DELETE)
-            # Simple heuristic: Check if it starts with SELECT (case insensitive)
-            response = ""
-            clean_msg = message.strip().upper()
-            
-            if clean_msg.startswith("SELECT"):
-                response = execute_sql_query(message)
-            else:
-                response = execute_sql_command(message)
+            response = handle_request(message, store)
 
             # Send response followed by null character
-            client_socket.sendall((response + "\0").encode("utf-8"))
+            if isinstance(response, str):
+                client_socket.sendall((response + "\0").encode("utf-8"))
+            else:
+                for chunk in response:
+                    client_socket.sendall(chunk.encode("utf-8"))
+                client_socket.sendall(b"\0")
 
     except Exception as e:
         print(f"[{SERVER_NAME}] Error handling client {addr}: {e}")
@@ -156,9 +428,13 @@ def handle_client(client_socket: socket.socket, addr):
         print(f"[{SERVER_NAME}] Client {addr} disconnected")
 
 
-def start_server(host="127.0.0.1", port=7778):
+def start_server(host="127.0.0.1", port=7778, fast=False, commit_every=1000, commit_ms=50, readers=4):
     # Initialize DB before starting to listen
     init_database()
+    store = FastStore(DB_FILE, commit_every, commit_ms, readers) if fast else None
+    if fast:
+        print(f"[{SERVER_NAME}] Fast mode: WAL, commit every {commit_every} statements or {commit_ms}ms, "
+              f"{readers} readers")
 
     server_socket = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
     server_socket.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
@@ -173,7 +449,7 @@ def start_server(host="127.0.0.1", port=7778):
             client_socket, addr = server_socket.accept()
             t = threading.Thread(
                 target=handle_client,
-                args=(client_socket, addr),
+                args=(client_socket, addr, store),
                 daemon=True
             )
             t.start()
@@ -189,11 +465,22 @@ def start_server(host="127.0.0.1", port=7778):
 
 if __name__ == "__main__":
     port = 7778
-    if len(sys.argv) > 1:
-        raw_port = sys.argv[1].strip()
+    options = {"fast": False, "commit_every": 1000, "commit_ms": 50, "readers": 4}
+    args = sys.argv[1:]
+    if args and not args[0].startswith("--"):
+        raw_port = args.pop(0).strip()
         try:
             port = int(raw_port)
         except ValueError:
             print(f"Invalid port '{raw_port}', falling back to default {port}")
 
-    start_server(port=port)
\ No newline at end of file
+    while args:
+        flag = args.pop(0)
+        if flag == "--fast":
+            options["fast"] = True
+        elif flag in ("--commit-every", "--commit-ms", "--readers") and args:
+            options[flag[2:].replace("-", "_")] = int(args.pop(0))
+        else:
+            print(f"Ignoring unknown option '{flag}'")
+
+    start_server(port=port, **options)
@@ -0,0 +1,83 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link StompMessageEncoderDecoder}: decoding a SEND frame from a heap buffer (TPC) or a direct one (the
+ * reactors read into pooled direct buffers), and encoding a MESSAGE whole or in the head and tail the fan-out uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"64", "1024", "65536"})
+    public int bodySize;
+
+    @Param({"heap", "direct"})
+    public String buffer;
+
+    private final StompMessageEncoderDecoder encdec = new StompMessageEncoderDecoder();
+    private ByteBuffer sendFrame;
+    private StompFrame message;
+
+    @Setup
+    public void setup() {
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        byte[] head = ("SEND\ndestination:/Germany_Japan\nfile-name:events.json\nreceipt:17\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[head.length + body.length + 1];
+        System.arraycopy(head, 0, frame, 0, head.length);
+        System.arraycopy(body, 0, frame, head.length, body.length);
+
+        if (buffer.equals("direct")) {
+            sendFrame = ByteBuffer.allocateDirect(frame.length);
+            sendFrame.put(frame);
+            sendFrame.flip();
+        } else {
+            sendFrame = ByteBuffer.wrap(frame);
+        }
+
+        message = new StompFrame(StompCommand.MESSAGE, 4)
+                .addHeader(StompFrame.SUBSCRIPTION, "5")
+                .addHeader(StompFrame.MESSAGE_ID, "0001-5f3c2a10-00000000002a")
+                .addHeader(StompFrame.DESTINATION, "/Germany_Japan")
+                .addHeader(StompFrame.MESSAGE_SEQ, "42")
+                .setBody(body, 0, body.length);
+    }
+
+    @Benchmark
+    public List<StompFrame> decode() {
+        sendFrame.rewind();
+        return encdec.decode(sendFrame);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return encdec.encode(message);
+    }
+
+    @Benchmark
+    public int encodeHeadAndTail() {
+        return message.encodeHead().length + message.encodeTail().length;
+    }
+}
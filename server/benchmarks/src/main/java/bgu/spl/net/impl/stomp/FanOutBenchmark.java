@@ -0,0 +1,68 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.DiscardingConnectionHandler;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ConnectionsImpl#send(String, Object)} of one MESSAGE to a channel with 1, 100 and 10k subscribers, that
+ * subscribed to the channel itself or to a pattern that matches it. The connections discard what they are sent
+ * and the message log is off, so this is the cost of encoding once and handing the parts to every subscriber.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final String CHANNEL = "/Germany_Japan";
+
+    @Param({"1", "100", "10000"})
+    public int subscribers;
+
+    @Param({"exact", "pattern"})
+    public String subscription;
+
+    @Param({"1024"})
+    public int bodySize;
+
+    private ConnectionsImpl<StompFrame> connections;
+    private byte[] body;
+    private long messageId = 0;
+
+    @Setup
+    public void setup() {
+        connections = new ConnectionsImpl<>(null, null);
+        String destination = subscription.equals("pattern") ? "/Germany_*" : CHANNEL;
+        for (int i = 0; i < subscribers; i++) {
+            connections.addConnection(i, new DiscardingConnectionHandler<>());
+            connections.subscribe(destination, i, i);
+        }
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+    }
+
+    @Benchmark
+    public long send() {
+        // a new frame every time, as the protocol makes one per SEND (send adds the message-seq header to it)
+        StompFrame message = new StompFrame(StompCommand.MESSAGE, 3)
+                .addHeader(StompFrame.MESSAGE_ID, Long.toString(++messageId))
+                .addHeader(StompFrame.DESTINATION, CHANNEL)
+                .setBody(body, 0, body.length);
+        connections.send(CHANNEL, message);
+        return connections.getLastSequence(CHANNEL);
+    }
+}
@@ -0,0 +1,100 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.DiscardingConnectionHandler;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link StompMessagingProtocolImpl#process} of the frames a connected client sends all the time.
+ * <p>
+ * SEND goes to a stub {@link Connections} that drops the MESSAGE, so only the protocol is measured (the fan-out is
+ * {@link FanOutBenchmark}). SUBSCRIBE and UNSUBSCRIBE need a {@link ConnectionsImpl} - the protocol registers the
+ * subscription there - without a message log and with a connection that discards what it is sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({"64", "1024"})
+    public int bodySize;
+
+    private StompMessagingProtocolImpl sendProtocol;
+    private StompMessagingProtocolImpl subscribeProtocol;
+    private StompFrame send;
+    private StompFrame subscribe;
+    private StompFrame unsubscribe;
+    private final DroppingConnections dropped = new DroppingConnections();
+
+    @Setup
+    public void setup() {
+        sendProtocol = new StompMessagingProtocolImpl();
+        sendProtocol.start(1, dropped);
+
+        ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>(null, null);
+        connections.addConnection(1, new DiscardingConnectionHandler<>());
+        subscribeProtocol = new StompMessagingProtocolImpl();
+        subscribeProtocol.start(1, connections);
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < bodySize; i++) {
+            body.append('x');
+        }
+        send = decode("SEND\ndestination:/Germany_Japan\n\n" + body + "\u0000");
+        subscribe = decode("SUBSCRIBE\ndestination:/Germany_Japan\nid:5\n\n\u0000");
+        unsubscribe = decode("UNSUBSCRIBE\nid:5\n\n\u0000");
+    }
+
+    @Benchmark
+    public long send() {
+        sendProtocol.process(send);
+        return dropped.messages;
+    }
+
+    @Benchmark
+    public StompFrame subscribeAndUnsubscribe() {
+        subscribeProtocol.process(subscribe);
+        return subscribeProtocol.process(unsubscribe);
+    }
+
+    private static StompFrame decode(String frame) {
+        return new StompMessageEncoderDecoder()
+                .decode(ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8)))
+                .get(0);
+    }
+
+    private static final class DroppingConnections implements Connections<StompFrame> {
+        long messages = 0;
+
+        @Override
+        public boolean send(int connectionId, StompFrame msg) {
+            messages++;
+            return true;
+        }
+
+        @Override
+        public void send(String channel, StompFrame msg) {
+            messages++;
+        }
+
+        @Override
+        public void disconnect(int connectionId) {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tasks per second through {@link ActorThreadPool#submit}, from 4 producer threads: every producer submitting to
+ * an actor of its own (the connections of a reactor) and all of them submitting to one actor (the contended case,
+ * its tasks run one at a time). An operation is a task submitted and run - every producer waits for its batch to
+ * complete, so the queues never grow without bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActorThreadPoolBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"2", "4"})
+    public int poolThreads;
+
+    private ActorThreadPool pool;
+    private final ActorMailbox shared = new ActorMailbox();
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final ActorMailbox own = new ActorMailbox();
+        final AtomicLong done = new AtomicLong();
+        final Runnable task = done::incrementAndGet;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pool = new ActorThreadPool(poolThreads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH)
+    public long ownActor(Producer producer) {
+        return submitAndWait(producer.own, producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH)
+    public long sharedActor(Producer producer) {
+        return submitAndWait(shared, producer);
+    }
+
+    private long submitAndWait(ActorMailbox actor, Producer producer) {
+        long target = producer.done.get() + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            pool.submit(actor, producer.task);
+        }
+        long done;
+        while ((done = producer.done.get()) < target) {
+            Thread.yield();
+        }
+        return done;
+    }
+}
@@ -0,0 +1,50 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The read buffer pool of {@link NonBlockingConnectionHandler}: a lease and a release, by one thread and by as
+ * many threads as the machine has (the selector and pool threads of a multireactor), against allocating a heap
+ * buffer of the same size every time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolBenchmark {
+
+    @Benchmark
+    @Threads(1)
+    public ByteBuffer leaseRelease() {
+        return leaseAndRelease();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ByteBuffer leaseReleaseContended() {
+        return leaseAndRelease();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ByteBuffer allocateHeap() {
+        return ByteBuffer.allocate(1 << 13); // the size of the pooled buffers
+    }
+
+    private static ByteBuffer leaseAndRelease() {
+        ByteBuffer buffer = NonBlockingConnectionHandler.leaseBuffer();
+        buffer.put((byte) 1);
+        NonBlockingConnectionHandler.releaseBuffer(buffer);
+        return buffer;
+    }
+}
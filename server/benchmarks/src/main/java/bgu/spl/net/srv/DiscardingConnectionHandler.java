@@ -0,0 +1,52 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A connection that takes every message and only counts it, so a benchmark measures the server and not a socket.
+ */
+public class DiscardingConnectionHandler<T> implements ConnectionHandler<T> {
+
+    private long messages = 0;
+    private long bytes = 0;
+
+    @Override
+    public void send(T msg) {
+        messages++;
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer... parts) {
+        messages++;
+        for (ByteBuffer part : parts) {
+            bytes += part.remaining();
+        }
+    }
+
+    @Override
+    public void sendHeartbeat() {
+        bytes++;
+    }
+
+    @Override
+    public long getLastReadTime() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long getLastWriteTime() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -1,22 +1,49 @@
-package bgu.spl.net.api;
-
-public interface MessageEncoderDecoder<T> {
-
-    /**
-     * add the next byte to the decoding process
-     *
-     * @param nextByte the next byte to consider for the currently decoded
-     * message
-     * @return a message if this byte completes one or null if it doesnt.
-     */
-    T decodeNextByte(byte nextByte);
-
-    /**
-     * encodes the given message to bytes array
-     *
-     * @param message the message to encode
-     * @return the encoded bytes
-     */
-    byte[] encode(T message);
-
-}
+package bgu.spl.net.api;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public interface MessageEncoderDecoder<T> {
+
+    /**
+     * add the next byte to the decoding process
+     *
+     * @param nextByte the next byte to consider for the currently decoded
+     * message
+     * @return a message if this byte completes one or null if it doesnt.
+     */
+    T decodeNextByte(byte nextByte);
+
+    /**
+     * add all the remaining bytes of the given buffer to the decoding process.
+     * the default implementation feeds them one by one to {@link #decodeNextByte(byte)},
+     * decoders that can find message boundaries in bulk should override it.
+     *
+     * @param buffer the bytes to consider, the buffer is fully consumed by this call
+     * @return the messages completed by these bytes in their order (possibly an empty list)
+     */
+    default List<T> decode(ByteBuffer buffer) {
+        List<T> messages = null;
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                if (messages == null) {
+                    messages = new ArrayList<>();
+                }
+                messages.add(nextMessage);
+            }
+        }
+        return messages == null ? Collections.emptyList() : messages;
+    }
+
+    /**
+     * encodes the given message to bytes array
+     *
+     * @param message the message to encode
+     * @return the encoded bytes
+     */
+    byte[] encode(T message);
+
+}
@@ -1,17 +1,54 @@
-package bgu.spl.net.api;
-
-public interface MessagingProtocol<T> {
- 
-    /**
-     * process the given message 
-     * @param msg the received message
-     * @return the response to send or null if no response is expected by the client
-     */
-    T process(T msg);
- 
-    /**
-     * @return true if the connection should be terminated
-     */
-    boolean shouldTerminate();
- 
+package bgu.spl.net.api;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+public interface MessagingProtocol<T> {
+ 
+    /**
+     * process the given message 
+     * @param msg the received message
+     * @return the response to send or null if no response is expected by the client
+     */
+    T process(T msg);
+
+    /**
+     * process the given message, possibly finishing later (e.g. after a database round trip) without blocking
+     * the calling thread. The connection does not process its next messages until the returned stage completes,
+     * so they are still handled one by one and in order.
+     * the default implementation completes at once with {@link #process(Object)}.
+     * @param msg the received message
+     * @return completes with the response to send, or null if no response is expected by the client
+     */
+    default CompletionStage<T> processAsync(T msg) {
+        return CompletableFuture.completedFuture(process(msg));
+    }
+
+    /**
+     * Same as {@link #processAsync(Object)}, for a protocol whose processing continues on another thread (e.g. the
+     * one that got the database response): the continuation must run on {@code serial}, which runs tasks one by one
+     * with the rest of the connection's work - never concurrently with another message of the connection or with
+     * {@link #connectionClosed()}. The default implementation ignores the executor.
+     * @param msg    the received message
+     * @param serial runs the continuations of the processing in turn with the connection's other work
+     * @return completes with the response to send, or null if no response is expected by the client
+     */
+    default CompletionStage<T> processAsync(T msg, Executor serial) {
+        return processAsync(msg);
+    }
+ 
+    /**
+     * @return true if the connection should be terminated
+     */
+    boolean shouldTerminate();
+
+    /**
+     * Called once when the connection is closed, for any reason - the protocol terminated it, the client went
+     * away or it was found dead. Never runs concurrently with the processing of a message of the connection.
+     * the default implementation does nothing.
+     */
+    default void connectionClosed() {
+    }
+ 
 }
\ No newline at end of file
@@ -1,253 +1,461 @@
-package bgu.spl.net.impl.data;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
-
-public class Database {
-	private final ConcurrentHashMap<String, User> userMap;
-	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final String sqlHost;
-	private final int sqlPort;
-
-	private Database() {
-		userMap = new ConcurrentHashMap<>();
-		connectionsIdMap = new ConcurrentHashMap<>();
-		// SQL server connection details
-		this.sqlHost = "127.0.0.1";
-		this.sqlPort = 7778;
-	}
-
-	public static Database getInstance() {
-		return Instance.instance;
-	}
-
-	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
-	 */
-	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
-			}
-			
-			return response.toString();
-			
-		} catch (Exception e) {
-			System.err.println("SQL Error: " + e.getMessage());
-			return "ERROR:" + e.getMessage();
-		}
-	}
-
-	/**
-	 * Escape SQL special characters to prevent SQL injection
-	 */
-	private String escapeSql(String str) {
-		if (str == null) return "";
-		return str.replace("'", "''");
-	}
-
-	public void addUser(User user) {
-		userMap.putIfAbsent(user.name, user);
-		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
-	}
-
-	public LoginStatus login(int connectionId, String username, String password) {
-		if (connectionsIdMap.containsKey(connectionId)) {
-			return LoginStatus.CLIENT_ALREADY_CONNECTED;
-		}
-		if (addNewUserCase(connectionId, username, password)) {
-			// Log new user registration in SQL
-			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			executeSQL(sql);
-			
-			// Log login
-			logLogin(username);
-			return LoginStatus.ADDED_NEW_USER;
-		} else {
-			LoginStatus status = userExistsCase(connectionId, username, password);
-			if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
-				// Log successful login in SQL
-				logLogin(username);
-			}
-			return status;
-		}
-	}
-
-	private void logLogin(String username) {
-		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
-		);
-		executeSQL(sql);
-	}
-
-	private LoginStatus userExistsCase(int connectionId, String username, String password) {
-		User user = userMap.get(username);
-		synchronized (user) {
-			if (user.isLoggedIn()) {
-				return LoginStatus.ALREADY_LOGGED_IN;
-			} else if (!user.password.equals(password)) {
-				return LoginStatus.WRONG_PASSWORD;
-			} else {
-				user.login();
-				user.setConnectionId(connectionId);
-				connectionsIdMap.put(connectionId, user);
-				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
-			}
-		}
-	}
-
-	private boolean addNewUserCase(int connectionId, String username, String password) {
-		if (!userMap.containsKey(username)) {
-			synchronized (userMap) {
-				if (!userMap.containsKey(username)) {
-					User user = new User(connectionId, username, password);
-					user.login();
-					addUser(user);
-					return true;
-				}
-			}
-		}
-		return false;
-	}
-
-	public void logout(int connectionsId) {
-		User user = connectionsIdMap.get(connectionsId);
-		if (user != null) {
-			// Log logout in SQL
-			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
-				"WHERE username='%s' AND logout_time IS NULL " +
-				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
-			);
-			executeSQL(sql);
-			
-			user.logout();
-			connectionsIdMap.remove(connectionsId);
-		}
-	}
-
-	/**
-	 * Track file upload in SQL database
-	 * @param username User who uploaded the file
-	 * @param filename Name of the file
-	 * @param gameChannel Game channel the file was reported to
-	 */
-	public void trackFileUpload(String username, String filename, String gameChannel) {
-		String sql = String.format(
-			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
-		);
-		executeSQL(sql);
-	}
-
-	/**
-	 * Generate and print server report using SQL queries
-	 */
-	public void printReport() {
-		System.out.println(repeat("=", 80));
-		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
-		System.out.println(repeat("=", 80));
-		
-		// List all users
-		System.out.println("\n1. REGISTERED USERS:");
-		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
-		}
-		
-		// Login history for each user
-		System.out.println("\n2. LOGIN HISTORY:");
-		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
-				System.out.println("   No login history");
-			}
-		}
-		
-		// File uploads for each user
-		System.out.println("\n3. FILE UPLOADS:");
-		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
-			}
-		}
-		
-	System.out.println(repeat("=", 80));
-}
-
-private String repeat(String str, int times) {
-	StringBuilder sb = new StringBuilder();
-	for (int i = 0; i < times; i++) {
-		sb.append(str);
-	}
-	return sb.toString();
-}
-
-private static class Instance {
-	static Database instance = new Database();
+package bgu.spl.net.impl.data;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import bgu.spl.net.srv.metrics.Metrics;
+
+public class Database {
+	// Audit statements waiting for the SQL server. When this many are queued new ones are dropped (and counted)
+	private static final int WRITE_BEHIND_CAPACITY = 10_000;
+	// Rows merged into one INSERT, well below SQLite's limit on the terms of a compound statement
+	private static final int WRITE_BEHIND_MAX_ROWS = 200;
+	private static final long SHUTDOWN_FLUSH_MILLIS = 5_000;
+	private static final long REPORT_FLUSH_MILLIS = 2_000;
+	// Rows of a table the report reads and prints at a time
+	private static final int REPORT_PAGE_ROWS = 500;
+	// Rows of a table read at a time while the server starts, and how often the progress is printed
+	private static final int LOAD_PAGE_ROWS = 5_000;
+	private static final int LOAD_PROGRESS_ROWS = 50_000;
+	// Connections to the SQL server, kept open and shared by all the threads
+	private static final int SQL_POOL_SIZE = 4;
+	private static final int SQL_CONNECT_TIMEOUT_MILLIS = 2_000;
+	private static final long SQL_REQUEST_TIMEOUT_MILLIS = 5_000;
+	private static final long SQL_MIN_BACKOFF_MILLIS = 100;
+	private static final long SQL_MAX_BACKOFF_MILLIS = 5_000;
+	// Same format as SQLite's datetime('now'), which is UTC
+	private static final DateTimeFormatter SQL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private final ConcurrentHashMap<String, User> userMap;
+	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
+	private final SqlConnectionPool sqlPool;
+	private final SqlWriteBehind writeBehind;
+	// What the report shows, maintained as the events happen
+	private final ReportAggregates aggregates = new ReportAggregates();
+	// Set once loadUsers read the whole users table, then an unknown username is certainly a new user
+	private volatile boolean usersLoaded = false;
+
+	private Database() {
+		userMap = new ConcurrentHashMap<>();
+		connectionsIdMap = new ConcurrentHashMap<>();
+		// SQL server connection details
+		this.sqlPool = new SqlConnectionPool("127.0.0.1", 7778, SQL_POOL_SIZE, SQL_CONNECT_TIMEOUT_MILLIS,
+				SQL_REQUEST_TIMEOUT_MILLIS, SQL_MIN_BACKOFF_MILLIS, SQL_MAX_BACKOFF_MILLIS);
+		// Audit logging never blocks the protocol threads: it is queued and written by a background thread
+		// a request with no response is retried by the write-behind and not taken for a failed statement
+		this.writeBehind = new SqlWriteBehind(WRITE_BEHIND_CAPACITY, WRITE_BEHIND_MAX_ROWS, sql -> {
+			String response = executeSQL(sql);
+			return response.startsWith(SqlConnectionPool.NO_RESPONSE) ? null : response;
+		});
+		Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "sql-write-behind-flush"));
+
+		Metrics metrics = Metrics.getInstance();
+		metrics.gauge("sql.pool.healthy", sqlPool::getHealthyConnections);
+		metrics.gauge("sql.pool.inflight", sqlPool::getInFlight);
+		metrics.gauge("sql.pool.failures", sqlPool::getFailures);
+		metrics.gauge("sql.pool.timeouts", sqlPool::getTimeouts);
+		metrics.gauge("sql.writebehind.queue", writeBehind::getQueueDepth);
+		metrics.gauge("sql.writebehind.dropped", writeBehind::getDropped);
+		metrics.gauge("sql.writebehind.failed", writeBehind::getFailed);
+		metrics.gauge("users.online", connectionsIdMap::size);
+	}
+
+	public static Database getInstance() {
+		return Instance.instance;
+	}
+
+	/**
+	 * Execute SQL query and return result
+	 * @param sql SQL query string
+	 * @return Result string from SQL server
+	 */
+	private String executeSQL(String sql) {
+		// Sent on one of the pooled connections, no connect and teardown per statement
+		String response = sqlPool.execute(sql);
+		if (response.startsWith("ERROR:")) {
+			System.err.println("SQL Error: " + response.substring("ERROR:".length()));
+		}
+		return response;
+	}
+
+	/**
+	 * Sends everything that is still queued for the SQL server, stops the background writer and closes the
+	 * connections to the SQL server.
+	 * Called automatically when the JVM exits.
+	 */
+	public void shutdown() {
+		try {
+			if (!writeBehind.close(SHUTDOWN_FLUSH_MILLIS)) {
+				System.err.println("SQL write-behind: " + writeBehind.getQueueDepth() + " statements were not written");
+			}
+			sqlPool.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public SqlWriteBehind getWriteBehind() {
+		return writeBehind;
+	}
+
+	public SqlConnectionPool getSqlPool() {
+		return sqlPool;
+	}
+
+	public ReportAggregates getReportAggregates() {
+		return aggregates;
+	}
+
+	/**
+	 * The current time in the format of the SQL tables. Statements are written later, so the time is taken when
+	 * they are queued and not by datetime('now') on the SQL server.
+	 */
+	private static String now() {
+		return LocalDateTime.now(ZoneOffset.UTC).format(SQL_TIME);
+	}
+
+	/**
+	 * Escape SQL special characters to prevent SQL injection.
+	 * The BATCH separator is removed, a value containing it would split its statement in two.
+	 */
+	private String escapeSql(String str) {
+		if (str == null) return "";
+		return str.replace("'", "''").replace(String.valueOf(SqlWriteBehind.BATCH_SEPARATOR), "");
+	}
+
+	public void addUser(User user) {
+		userMap.putIfAbsent(user.name, user);
+		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
+	}
+
+	public LoginStatus login(int connectionId, String username, String password) {
+		if (connectionsIdMap.containsKey(connectionId)) {
+			return LoginStatus.CLIENT_ALREADY_CONNECTED;
+		}
+		if (addNewUserCase(connectionId, username, password)) {
+			// Log new user registration in SQL
+			String time = now();
+			writeBehind.insert("users", "username, password, registration_date", String.format(
+				"('%s', '%s', '%s')",
+				escapeSql(username), escapeSql(password), time
+			));
+			aggregates.registered(username, time);
+			
+			// Log login
+			logLogin(username);
+			return LoginStatus.ADDED_NEW_USER;
+		} else {
+			LoginStatus status = userExistsCase(connectionId, username, password);
+			if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
+				// Log successful login in SQL
+				logLogin(username);
+			}
+			return status;
+		}
+	}
+
+	/**
+	 * Same as {@link #login(int, String, String)}, without blocking the calling thread.
+	 * Normally every registered user is in memory and it completes at once. If the users could not be loaded at
+	 * startup, an unknown username is looked up on the SQL server first, so a user of a previous run is not
+	 * registered again; should the SQL server not answer, the user is treated as new.
+	 */
+	public CompletableFuture<LoginStatus> loginAsync(int connectionId, String username, String password) {
+		if (usersLoaded || userMap.containsKey(username) || connectionsIdMap.containsKey(connectionId)) {
+			return CompletableFuture.completedFuture(login(connectionId, username, password));
+		}
+		String query = String.format(
+			"SELECT password, registration_date FROM users WHERE username='%s'", escapeSql(username));
+		return sqlPool.executeAsync(SqlRows.request(query)).handle((response, error) -> {
+			if (error == null) {
+				try {
+					for (Object[] row : SqlRows.parse(response).getRows()) {
+						userMap.putIfAbsent(username, new User(-1, username, row[0] == null ? "" : (String) row[0]));
+						aggregates.registered(username, (String) row[1]);
+					}
+				} catch (IllegalArgumentException e) {
+					System.err.println("SQL Error: " + e.getMessage());
+				}
+			}
+			return login(connectionId, username, password);
+		});
+	}
+
+	private void logLogin(String username) {
+		String time = now();
+		writeBehind.insert("login_history", "username, login_time", String.format(
+			"('%s', '%s')",
+			escapeSql(username), time
+		));
+		aggregates.loggedIn(username, time);
+	}
+
+	private LoginStatus userExistsCase(int connectionId, String username, String password) {
+		User user = userMap.get(username);
+		synchronized (user) {
+			if (user.isLoggedIn()) {
+				return LoginStatus.ALREADY_LOGGED_IN;
+			} else if (!user.password.equals(password)) {
+				return LoginStatus.WRONG_PASSWORD;
+			} else {
+				user.login();
+				user.setConnectionId(connectionId);
+				connectionsIdMap.put(connectionId, user);
+				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
+			}
+		}
+	}
+
+	private boolean addNewUserCase(int connectionId, String username, String password) {
+		if (!userMap.containsKey(username)) {
+			synchronized (userMap) {
+				if (!userMap.containsKey(username)) {
+					User user = new User(connectionId, username, password);
+					user.login();
+					addUser(user);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public void logout(int connectionsId) {
+		User user = connectionsIdMap.get(connectionsId);
+		if (user != null) {
+			// Log logout in SQL
+			String time = now();
+			String sql = String.format(
+				"UPDATE login_history SET logout_time='%s' " +
+				"WHERE username='%s' AND logout_time IS NULL " +
+				"ORDER BY login_time DESC LIMIT 1",
+				time, escapeSql(user.name)
+			);
+			writeBehind.execute(sql);
+			aggregates.loggedOut(user.name, time);
+			
+			user.logout();
+			connectionsIdMap.remove(connectionsId);
+		}
+	}
+
+	/**
+	 * Track file upload in SQL database
+	 * @param username User who uploaded the file
+	 * @param filename Name of the file
+	 * @param gameChannel Game channel the file was reported to
+	 */
+	public void trackFileUpload(String username, String filename, String gameChannel) {
+		writeBehind.insert("file_tracking", "username, filename, upload_time, game_channel", String.format(
+			"('%s', '%s', '%s', '%s')",
+			escapeSql(username), escapeSql(filename), now(), escapeSql(gameChannel)
+		));
+		aggregates.uploaded(username, gameChannel);
+	}
+
+	/**
+	 * Reads the users registered in previous runs from the SQL server, so a returning user logs in with a check in
+	 * memory instead of being registered again (and failing on the SQL server).
+	 * Called once, before the server accepts clients: the table is streamed page by page and the progress printed.
+	 * @return false if the users could not be read - then they register again as new users
+	 */
+	public boolean loadUsers() {
+		long start = System.nanoTime();
+		long[] loaded = {0};
+		long users = forEachRow(
+			"SELECT username, password, registration_date FROM users %s ORDER BY username",
+			LOAD_PAGE_ROWS,
+			last -> String.format("WHERE username > '%s'", escapeSql((String) last[0])),
+			row -> {
+				String username = (String) row[0];
+				userMap.putIfAbsent(username, new User(-1, username, row[1] == null ? "" : (String) row[1]));
+				aggregates.registered(username, (String) row[2]);
+				if (++loaded[0] % LOAD_PROGRESS_ROWS == 0) {
+					System.out.println("Loading users: " + loaded[0] + "...");
+				}
+			});
+		if (users < 0) {
+			System.err.println("Users: could not read the registered users from the SQL server");
+			return false;
+		}
+		System.out.println("Users: loaded " + users + " users in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+		usersLoaded = true;
+		return true;
+	}
+
+	/**
+	 * Reads the totals of the previous runs from the SQL tables into the report aggregates, with grouped queries
+	 * so the server receives one row per user (and game channel) and not the whole history.
+	 * Called once, after {@link #loadUsers()} and before the server accepts clients; from then on the aggregates
+	 * are updated by the events.
+	 */
+	public void loadReportAggregates() {
+		long start = System.nanoTime();
+		long logins = forEachRow(
+			"SELECT username, COUNT(*), MAX(login_time), MAX(logout_time) FROM login_history %s " +
+			"GROUP BY username ORDER BY username",
+			last -> String.format("WHERE username > '%s'", escapeSql((String) last[0])),
+			row -> aggregates.loadedLogins((String) row[0], (Long) row[1], (String) row[2], (String) row[3]));
+		long uploads = forEachRow(
+			"SELECT username, COALESCE(game_channel, ''), COUNT(*) FROM file_tracking %s " +
+			"GROUP BY username, COALESCE(game_channel, '') ORDER BY username, COALESCE(game_channel, '')",
+			last -> String.format("WHERE (username, COALESCE(game_channel, '')) > ('%s', '%s')",
+				escapeSql((String) last[0]), escapeSql((String) last[1])),
+			row -> aggregates.uploaded((String) row[0], (String) row[1], (Long) row[2]));
+		if (logins < 0 || uploads < 0) {
+			System.err.println("Report: could not read the previous totals from the SQL server, the report counts from now");
+			return;
+		}
+		System.out.println("Report: loaded " + aggregates.getUserCount() + " users, " + aggregates.getLoginCount()
+			+ " logins and " + aggregates.getUploadCount() + " uploads in "
+			+ (System.nanoTime() - start) / 1_000_000 + "ms");
+	}
+
+	/**
+	 * Print the server report from the live aggregates, without querying the SQL server
+	 */
+	public void printReport() {
+		System.out.println(repeat("=", 80));
+		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
+		System.out.println(repeat("=", 80));
+		aggregates.print();
+		System.out.println(repeat("=", 80));
+	}
+
+	/**
+	 * Generate and print the detailed server report (every login and file) using SQL queries
+	 */
+	public void printFullReport() {
+		// The report must include what the server did so far, let the queued audit statements reach the database
+		try {
+			writeBehind.flush(REPORT_FLUSH_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		System.out.println(repeat("=", 80));
+		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
+		System.out.println(repeat("=", 80));
+		
+		// Every section is read page by page (by key, not by OFFSET) and printed as it arrives,
+		// so the report never holds more than one page of a table however large it grows
+
+		// List all users
+		System.out.println("\n1. REGISTERED USERS:");
+		System.out.println(repeat("-", 80));
+		long users = forEachRow(
+			"SELECT username, registration_date FROM users %s " +
+			"ORDER BY COALESCE(registration_date, ''), username",
+			last -> String.format(
+				"WHERE (COALESCE(registration_date, ''), username) > ('%s', '%s')",
+				escapeSql(last[1] == null ? "" : (String) last[1]), escapeSql((String) last[0])),
+			row -> System.out.println("   ('" + row[0] + "', " + (row[1] == null ? "None" : "'" + row[1] + "'") + ")"));
+		if (users == 0) {
+			System.out.println("   No users registered");
+		}
+
+		// Login history for each user
+		System.out.println("\n2. LOGIN HISTORY:");
+		System.out.println(repeat("-", 80));
+		String[] currentUser = {""};
+		long logins = forEachRow(
+			"SELECT username, login_time, logout_time, id FROM login_history %s " +
+			"ORDER BY username, login_time DESC, id DESC",
+			last -> String.format(
+				"WHERE username > '%1$s' OR (username = '%1$s' AND " +
+				"(login_time < '%2$s' OR (login_time = '%2$s' AND id < %3$d)))",
+				escapeSql((String) last[0]), escapeSql((String) last[1]), (Long) last[3]),
+			row -> {
+				if (!row[0].equals(currentUser[0])) {
+					currentUser[0] = (String) row[0];
+					System.out.println("\n   User: " + currentUser[0]);
+				}
+				System.out.println("      Login:  " + row[1]);
+				System.out.println("      Logout: " + (row[2] == null ? "Still logged in" : row[2]));
+			});
+		if (logins == 0) {
+			System.out.println("   No login history");
+		}
+
+		// File uploads for each user
+		System.out.println("\n3. FILE UPLOADS:");
+		System.out.println(repeat("-", 80));
+		currentUser[0] = "";
+		long files = forEachRow(
+			"SELECT username, filename, upload_time, game_channel, id FROM file_tracking %s " +
+			"ORDER BY username, COALESCE(upload_time, '') DESC, id DESC",
+			last -> String.format(
+				"WHERE username > '%1$s' OR (username = '%1$s' AND " +
+				"(COALESCE(upload_time, '') < '%2$s' OR (COALESCE(upload_time, '') = '%2$s' AND id < %3$d)))",
+				escapeSql((String) last[0]), escapeSql(last[2] == null ? "" : (String) last[2]), (Long) last[4]),
+			row -> {
+				if (!row[0].equals(currentUser[0])) {
+					currentUser[0] = (String) row[0];
+					System.out.println("\n   User: " + currentUser[0]);
+				}
+				System.out.println("      File: " + row[1]);
+				System.out.println("      Time: " + row[2]);
+				System.out.println("      Game: " + row[3]);
+				System.out.println();
+			});
+		if (files == 0) {
+			System.out.println("   No files uploaded");
+		}
+		
+	System.out.println(repeat("=", 80));
+}
+
+/**
+ * Reads the result of a query page by page, using keyset pagination: the next page is selected by a condition
+ * on the key of the last row of the previous one, which stays fast at any depth (unlike OFFSET).
+ * @param query    the query, with a %s where the WHERE clause of the page goes and without a LIMIT
+ * @param nextPage given the last row of a page, the WHERE clause that selects the rows after it
+ * @param consumer called with every row, in order
+ * @return how many rows were read, or -1 if the query failed before any
+ */
+private long forEachRow(String query, Function<Object[], String> nextPage, Consumer<Object[]> consumer) {
+	return forEachRow(query, REPORT_PAGE_ROWS, nextPage, consumer);
+}
+
+private long forEachRow(String query, int pageRows, Function<Object[], String> nextPage,
+		Consumer<Object[]> consumer) {
+	String where = "";
+	long read = 0;
+	while (true) {
+		String response = executeSQL(SqlRows.request(String.format(query, where) + " LIMIT " + pageRows));
+		SqlRows page;
+		try {
+			page = SqlRows.parse(response);
+		} catch (IllegalArgumentException e) {
+			if (!response.startsWith("ERROR")) {
+				System.err.println("SQL Error: " + e.getMessage());
+			}
+			return read > 0 ? read : -1;
+		}
+		for (Object[] row : page.getRows()) {
+			consumer.accept(row);
+		}
+		read += page.size();
+		if (page.size() < pageRows) {
+			return read;
+		}
+		where = nextPage.apply(page.last());
+	}
+}
+
+static String repeat(String str, int times) {
+	StringBuilder sb = new StringBuilder();
+	for (int i = 0; i < times; i++) {
+		sb.append(str);
+	}
+	return sb.toString();
+}
+
+private static class Instance {
+	static Database instance = new Database();
 }}
\ No newline at end of file
@@ -0,0 +1,181 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live totals of everything the server report shows, kept up to date by {@link Database} as the events happen,
+ * so printing the report costs O(users) and never scans the SQL tables.
+ * <p>
+ * The tables are read only once, when the server starts, to continue from the totals of the previous runs
+ * (see {@link Database#loadReportAggregates()}).
+ */
+public class ReportAggregates {
+
+	// sorted by name, so the report is printed in order without sorting
+	private final ConcurrentSkipListMap<String, UserStats> users = new ConcurrentSkipListMap<>();
+	private final ConcurrentHashMap<String, LongAdder> uploadsPerChannel = new ConcurrentHashMap<>();
+	private final LongAdder logins = new LongAdder();
+	private final LongAdder uploads = new LongAdder();
+
+	public void registered(String username, String time) {
+		stats(username).registered(time);
+	}
+
+	public void loggedIn(String username, String time) {
+		logins.increment();
+		stats(username).loggedIn(time);
+	}
+
+	public void loggedOut(String username, String time) {
+		stats(username).loggedOut(time);
+	}
+
+	public void uploaded(String username, String gameChannel) {
+		uploaded(username, gameChannel, 1);
+	}
+
+	/*package*/ void uploaded(String username, String gameChannel, long count) {
+		uploads.add(count);
+		uploadsPerChannel.computeIfAbsent(gameChannel, channel -> new LongAdder()).add(count);
+		stats(username).uploaded(gameChannel, count);
+	}
+
+	/*package*/ void loadedLogins(String username, long count, String lastLogin, String lastLogout) {
+		logins.add(count);
+		stats(username).loadedLogins(count, lastLogin, lastLogout);
+	}
+
+	public int getUserCount() {
+		return users.size();
+	}
+
+	public long getLoginCount() {
+		return logins.sum();
+	}
+
+	public long getUploadCount() {
+		return uploads.sum();
+	}
+
+	/**
+	 * Prints the report sections from the totals. Every user is copied under its own lock, so the numbers of a
+	 * user are consistent with each other even while its client keeps working.
+	 */
+	public void print() {
+		System.out.println("\n1. REGISTERED USERS: " + users.size());
+		System.out.println(Database.repeat("-", 80));
+		if (users.isEmpty()) {
+			System.out.println("   No users registered");
+		}
+		for (Map.Entry<String, UserStats> entry : users.entrySet()) {
+			UserStats stats = entry.getValue().copy();
+			System.out.println("   ('" + entry.getKey() + "', "
+					+ (stats.registrationDate == null ? "None" : "'" + stats.registrationDate + "'") + ")");
+		}
+
+		System.out.println("\n2. LOGIN HISTORY: " + logins.sum() + " logins");
+		System.out.println(Database.repeat("-", 80));
+		for (Map.Entry<String, UserStats> entry : users.entrySet()) {
+			UserStats stats = entry.getValue().copy();
+			if (stats.logins == 0) {
+				continue;
+			}
+			System.out.println("\n   User: " + entry.getKey());
+			System.out.println("      Logins: " + stats.logins);
+			System.out.println("      Last login:  " + stats.lastLogin);
+			System.out.println("      Session: "
+					+ (stats.sessionStart != null ? "logged in since " + stats.sessionStart : "Not logged in"));
+			if (stats.lastLogout != null) {
+				System.out.println("      Last logout: " + stats.lastLogout);
+			}
+		}
+		if (logins.sum() == 0) {
+			System.out.println("   No login history");
+		}
+
+		System.out.println("\n3. FILE UPLOADS: " + uploads.sum() + " files");
+		System.out.println(Database.repeat("-", 80));
+		for (Map.Entry<String, UserStats> entry : users.entrySet()) {
+			UserStats stats = entry.getValue().copy();
+			if (stats.uploads == 0) {
+				continue;
+			}
+			System.out.println("\n   User: " + entry.getKey());
+			System.out.println("      Files: " + stats.uploads);
+			for (Map.Entry<String, Long> channel : stats.uploadsPerChannel.entrySet()) {
+				System.out.println("      Game: " + channel.getKey() + " - " + channel.getValue());
+			}
+		}
+		if (uploads.sum() == 0) {
+			System.out.println("   No files uploaded");
+		} else {
+			System.out.println("\n   Per game channel:");
+			for (Map.Entry<String, LongAdder> channel : new TreeMap<>(uploadsPerChannel).entrySet()) {
+				System.out.println("      " + channel.getKey() + ": " + channel.getValue().sum());
+			}
+		}
+	}
+
+	private UserStats stats(String username) {
+		return users.computeIfAbsent(username, name -> new UserStats());
+	}
+
+	/**
+	 * The totals of one user. All the fields are guarded by the instance lock.
+	 */
+	private static class UserStats {
+		String registrationDate;
+		long logins;
+		String lastLogin;
+		String sessionStart; // null while the user is not logged in
+		String lastLogout;
+		long uploads;
+		TreeMap<String, Long> uploadsPerChannel = new TreeMap<>();
+
+		// if the users could not be loaded at startup a user of a previous run registers again, the first date is the real one
+		synchronized void registered(String time) {
+			if (registrationDate == null) {
+				registrationDate = time;
+			}
+		}
+
+		synchronized void loggedIn(String time) {
+			logins++;
+			lastLogin = time;
+			sessionStart = time;
+		}
+
+		synchronized void loggedOut(String time) {
+			lastLogout = time;
+			sessionStart = null;
+		}
+
+		synchronized void uploaded(String gameChannel, long count) {
+			uploads += count;
+			uploadsPerChannel.merge(gameChannel, count, Long::sum);
+		}
+
+		// sessions of previous runs that were never closed are not current - nobody is connected at startup
+		synchronized void loadedLogins(long count, String last, String lastLogoutTime) {
+			logins += count;
+			lastLogin = last;
+			lastLogout = lastLogoutTime;
+		}
+
+		synchronized UserStats copy() {
+			UserStats copy = new UserStats();
+			copy.registrationDate = registrationDate;
+			copy.logins = logins;
+			copy.lastLogin = lastLogin;
+			copy.sessionStart = sessionStart;
+			copy.lastLogout = lastLogout;
+			copy.uploads = uploads;
+			copy.uploadsPerChannel = new TreeMap<>(uploadsPerChannel);
+			return copy;
+		}
+	}
+}
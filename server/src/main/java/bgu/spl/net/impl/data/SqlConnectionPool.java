@@ -0,0 +1,407 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bgu.spl.net.srv.metrics.Histogram;
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * A fixed set of long lived connections to the SQL server.
+ * <p>
+ * The SQL server answers the NUL terminated requests of a connection one by one, in order, so a connection
+ * does not wait for a response before sending the next request (pipelining): every request leaves a future in
+ * the FIFO of its connection and the reader thread of the connection completes the oldest future with every
+ * response it reads. Requests are spread between the connections in a round robin fashion.
+ * <p>
+ * A connection that fails is dropped together with the requests waiting on it and is opened again on the next
+ * request, but not before its backoff (doubled on every failed attempt) has passed - while the SQL server is
+ * down requests fail immediately instead of each waiting for a connect timeout.
+ * <p>
+ * A request that gets no response within the request timeout fails with a {@link TimeoutException}, whether the
+ * caller waits for it or not. Its late response, if any, still arrives in order and is discarded.
+ */
+public class SqlConnectionPool {
+
+	/**
+	 * Starts the result of {@link #execute(String)} when the request got no response - it timed out or its
+	 * connection failed, so it may or may not have been executed. The SQL server's own errors start with "ERROR: ".
+	 */
+	public static final String NO_RESPONSE = "ERROR:no response: ";
+
+	private static final Histogram ROUND_TRIP = Metrics.getInstance().latency("sql.roundtrip.nanos");
+
+	private final String host;
+	private final int port;
+	private final int connectTimeoutMillis;
+	private final long requestTimeoutMillis;
+	private final long minBackoffMillis;
+	private final long maxBackoffMillis;
+	private final PooledConnection[] connections;
+	private final AtomicInteger next = new AtomicInteger();
+	private final ScheduledThreadPoolExecutor timeoutTimer;
+	private volatile boolean closed = false;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong connectFailures = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	/**
+	 * @param size                 number of connections
+	 * @param connectTimeoutMillis how long opening a connection may take
+	 * @param requestTimeoutMillis how long {@link #execute(String)} waits for a response
+	 * @param minBackoffMillis     how long to wait before opening a connection again after it failed
+	 * @param maxBackoffMillis     the backoff doubles on every failed attempt up to this bound
+	 */
+	public SqlConnectionPool(String host, int port, int size, int connectTimeoutMillis, long requestTimeoutMillis,
+			long minBackoffMillis, long maxBackoffMillis) {
+		this.host = host;
+		this.port = port;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.requestTimeoutMillis = requestTimeoutMillis;
+		this.minBackoffMillis = minBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.connections = new PooledConnection[size];
+		this.timeoutTimer = new ScheduledThreadPoolExecutor(1, task -> {
+			Thread thread = new Thread(task, "sql-pool-timeouts");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timeoutTimer.setRemoveOnCancelPolicy(true); // most requests are answered long before their timeout
+		for (int i = 0; i < size; i++) {
+			connections[i] = new PooledConnection(i);
+		}
+	}
+
+	/**
+	 * Sends a statement and waits (up to the request timeout) for its response.
+	 * @return the response of the SQL server, or {@link #NO_RESPONSE} and the reason if there is none
+	 */
+	public String execute(String sql) {
+		try {
+			return executeAsync(sql).get();
+		} catch (ExecutionException e) {
+			return NO_RESPONSE + e.getCause().getMessage();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return NO_RESPONSE + "interrupted";
+		}
+	}
+
+	/**
+	 * Sends a statement without waiting for its response.
+	 * @return completes with the response of the SQL server, or exceptionally if the connection failed or the
+	 *         request timed out
+	 */
+	public CompletableFuture<String> executeAsync(String sql) {
+		requests.incrementAndGet();
+		PooledConnection connection = connections[Math.floorMod(next.getAndIncrement(), connections.length)];
+		try {
+			CompletableFuture<String> response = connection.send(sql);
+			if (!response.isDone()) {
+				ScheduledFuture<?> timeout = timeoutTimer.schedule(() -> {
+					if (response.completeExceptionally(new TimeoutException(
+							"no response from the SQL server within " + requestTimeoutMillis + "ms"))) {
+						timeouts.incrementAndGet();
+					}
+				}, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+				response.whenComplete((result, error) -> timeout.cancel(false));
+			}
+			return response;
+		} catch (IOException e) {
+			failures.incrementAndGet();
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	public void close() {
+		closed = true;
+		for (PooledConnection connection : connections) {
+			connection.close();
+		}
+		timeoutTimer.shutdownNow();
+	}
+
+	public int getSize() {
+		return connections.length;
+	}
+
+	/**
+	 * @return how many connections are open right now
+	 */
+	public int getHealthyConnections() {
+		int healthy = 0;
+		for (PooledConnection connection : connections) {
+			if (connection.link != null) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * @return how many requests were sent and still wait for their response
+	 */
+	public int getInFlight() {
+		int inFlight = 0;
+		for (PooledConnection connection : connections) {
+			Link link = connection.link;
+			if (link != null) {
+				inFlight += link.pending.size();
+			}
+		}
+		return inFlight;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return how many requests failed because their connection could not be opened or broke
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public long getConnects() {
+		return connects.get();
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	/**
+	 * @return the average time from sending a request until its response arrived
+	 */
+	public long getAverageLatencyNanos() {
+		long answered = requests.get() - failures.get();
+		return answered <= 0 ? 0 : totalLatencyNanos.get() / answered;
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos.get();
+	}
+
+	private void recordLatency(long nanos) {
+		ROUND_TRIP.record(nanos);
+		totalLatencyNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, nanos)) {
+			// retry
+		}
+	}
+
+	/**
+	 * One slot of the pool. Its link is replaced whenever the connection is opened again.
+	 */
+	private class PooledConnection {
+		private final int index;
+		private volatile Link link;
+		private long backoffMillis = 0;
+		private long nextAttempt = 0;
+		// the locks of the pool are held across socket I/O, and the requests may come from virtual threads
+		// that would pin their carrier thread blocking inside a monitor
+		private final ReentrantLock lock = new ReentrantLock();
+
+		PooledConnection(int index) {
+			this.index = index;
+		}
+
+		CompletableFuture<String> send(String sql) throws IOException {
+			Link current = link;
+			if (current == null) {
+				current = open();
+			}
+			return current.send(sql);
+		}
+
+		private Link open() throws IOException {
+			lock.lock();
+			try {
+				return openLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private Link openLocked() throws IOException {
+			if (link != null) {
+				return link; // opened by another thread meanwhile
+			}
+			if (closed) {
+				throw new IOException("the SQL connection pool is closed");
+			}
+			long now = System.currentTimeMillis();
+			if (now < nextAttempt) {
+				throw new IOException("SQL server unavailable, retrying in " + (nextAttempt - now) + "ms");
+			}
+
+			Socket socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+			} catch (IOException e) {
+				socket.close();
+				connectFailures.incrementAndGet();
+				backoffMillis = backoffMillis == 0 ? minBackoffMillis : Math.min(backoffMillis * 2, maxBackoffMillis);
+				nextAttempt = now + backoffMillis;
+				throw e;
+			}
+			connects.incrementAndGet();
+			backoffMillis = 0;
+			link = new Link(this, socket);
+			return link;
+		}
+
+		void dropped(Link broken) {
+			lock.lock();
+			try {
+				if (link == broken) {
+					link = null;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void close() {
+			Link current = link;
+			if (current != null) {
+				current.fail(new IOException("the SQL connection pool is closed"));
+			}
+		}
+	}
+
+	/**
+	 * One open socket of a pooled connection, with the requests that wait for a response on it.
+	 */
+	private class Link implements Runnable {
+		private final PooledConnection owner;
+		private final Socket socket;
+		private final OutputStream out;
+		private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<>();
+		private volatile boolean broken = false;
+		private final ReentrantLock writeLock = new ReentrantLock();
+
+		Link(PooledConnection owner, Socket socket) throws IOException {
+			this.owner = owner;
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			Thread reader = new Thread(this, "sql-pool-reader-" + owner.index);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		CompletableFuture<String> send(String sql) throws IOException {
+			Request request = new Request();
+			byte[] bytes = sql.getBytes(StandardCharsets.UTF_8);
+			writeLock.lock();
+			try {
+				if (broken) {
+					throw new IOException("SQL connection closed");
+				}
+				// the future is queued in the same order the request is written, so responses match it
+				pending.add(request);
+				try {
+					out.write(bytes);
+					out.write('\0');
+					out.flush();
+				} catch (IOException e) {
+					fail(e); // fails the request as well
+				}
+			} finally {
+				writeLock.unlock();
+			}
+			return request.response;
+		}
+
+		@Override
+		public void run() {
+			try {
+				InputStream in = socket.getInputStream();
+				ByteArrayOutputStream response = new ByteArrayOutputStream();
+				byte[] chunk = new byte[4096];
+				int read;
+				while ((read = in.read(chunk)) >= 0) {
+					int start = 0;
+					for (int i = 0; i < read; i++) {
+						if (chunk[i] == '\0') {
+							response.write(chunk, start, i - start);
+							complete(response.toString("UTF-8"));
+							response.reset();
+							start = i + 1;
+						}
+					}
+					response.write(chunk, start, read - start);
+				}
+				fail(new IOException("the SQL server closed the connection"));
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void complete(String response) {
+			Request request = pending.poll();
+			if (request != null) {
+				recordLatency(System.nanoTime() - request.sentAt);
+				request.response.complete(response);
+			}
+		}
+
+		void fail(IOException cause) {
+			writeLock.lock();
+			try {
+				if (broken) {
+					return;
+				}
+				broken = true;
+			} finally {
+				writeLock.unlock();
+			}
+			owner.dropped(this);
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+				// already failing
+			}
+			Request request;
+			while ((request = pending.poll()) != null) {
+				failures.incrementAndGet();
+				request.response.completeExceptionally(cause);
+			}
+		}
+	}
+
+	private static class Request {
+		final CompletableFuture<String> response = new CompletableFuture<>();
+		final long sentAt = System.nanoTime();
+	}
+}
@@ -0,0 +1,167 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a query result received in the typed ROWS format of the SQL server.
+ * <p>
+ * A ROWS request is {@link #ROWS_COMMAND}, {@link #FIELD_SEPARATOR} and a SELECT. The response is
+ * {@link #ROWS_COMMAND}, then the column names as one record and then one record per row, every record preceded
+ * by {@link #RECORD_SEPARATOR} and its fields separated by {@link #FIELD_SEPARATOR}. A field is a type letter and
+ * the value: N (null), I (integer), R (real), T (text) or B (blob, in hex). Texts and names escape the backslash,
+ * both separators and '\0' with a backslash, so any value arrives as it is stored - unlike the '|' separated
+ * tuples of a plain SELECT, which break on a '|', a comma or a quote in the data.
+ * <p>
+ * Values are {@code null}, {@link Long}, {@link Double}, {@link String} or {@code byte[]}.
+ */
+public class SqlRows {
+
+	public static final String ROWS_COMMAND = "ROWS";
+	public static final char FIELD_SEPARATOR = '\u001f';
+	public static final char RECORD_SEPARATOR = '\u001e';
+
+	private final List<String> columns;
+	private final List<Object[]> rows;
+
+	private SqlRows(List<String> columns, List<Object[]> rows) {
+		this.columns = columns;
+		this.rows = rows;
+	}
+
+	/**
+	 * @return the request that runs the query and returns its result in the ROWS format
+	 */
+	public static String request(String query) {
+		return ROWS_COMMAND + FIELD_SEPARATOR + query;
+	}
+
+	/**
+	 * @throws IllegalArgumentException with the error of the SQL server if the response is not a result
+	 */
+	public static SqlRows parse(String response) {
+		if (!response.startsWith(ROWS_COMMAND + RECORD_SEPARATOR)) {
+			throw new IllegalArgumentException(response);
+		}
+
+		List<String> columns = null;
+		List<Object[]> rows = new ArrayList<>();
+		int pos = ROWS_COMMAND.length() + 1;
+		while (pos <= response.length()) {
+			int end = response.indexOf(RECORD_SEPARATOR, pos);
+			if (end == -1) {
+				end = response.length();
+			}
+			if (columns == null) {
+				columns = new ArrayList<>();
+				if (end > pos) {
+					for (String name : splitFields(response, pos, end)) {
+						columns.add(unescape(name, 0));
+					}
+				}
+			} else if (response.startsWith("ERROR", pos)) {
+				throw new IllegalArgumentException(unescape(response.substring(pos, end), 0));
+			} else {
+				List<String> fields = splitFields(response, pos, end);
+				Object[] row = new Object[fields.size()];
+				for (int i = 0; i < row.length; i++) {
+					row[i] = decodeField(fields.get(i));
+				}
+				rows.add(row);
+			}
+			pos = end + 1;
+		}
+		return new SqlRows(Collections.unmodifiableList(columns), rows);
+	}
+
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	public List<Object[]> getRows() {
+		return rows;
+	}
+
+	public int size() {
+		return rows.size();
+	}
+
+	public boolean isEmpty() {
+		return rows.isEmpty();
+	}
+
+	/**
+	 * @return the last row of the page, the key of the next page when paginating by key
+	 */
+	public Object[] last() {
+		return rows.get(rows.size() - 1);
+	}
+
+	private static List<String> splitFields(String response, int from, int to) {
+		List<String> fields = new ArrayList<>();
+		int start = from;
+		for (int i = from; i < to; i++) {
+			if (response.charAt(i) == FIELD_SEPARATOR) {
+				fields.add(response.substring(start, i));
+				start = i + 1;
+			}
+		}
+		fields.add(response.substring(start, to));
+		return fields;
+	}
+
+	private static Object decodeField(String field) {
+		switch (field.charAt(0)) {
+			case 'N':
+				return null;
+			case 'I':
+				return Long.parseLong(field.substring(1));
+			case 'R':
+				return Double.parseDouble(field.substring(1));
+			case 'B':
+				return decodeHex(field.substring(1));
+			case 'T':
+				return unescape(field, 1);
+			default:
+				throw new IllegalArgumentException("unknown field type: " + field);
+		}
+	}
+
+	private static String unescape(String text, int from) {
+		if (text.indexOf('\\', from) == -1) {
+			return text.substring(from);
+		}
+		StringBuilder result = new StringBuilder(text.length() - from);
+		for (int i = from; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != '\\' || i + 1 == text.length()) {
+				result.append(c);
+				continue;
+			}
+			char escaped = text.charAt(++i);
+			switch (escaped) {
+				case 'f':
+					result.append(FIELD_SEPARATOR);
+					break;
+				case 'r':
+					result.append(RECORD_SEPARATOR);
+					break;
+				case '0':
+					result.append('\0');
+					break;
+				default:
+					result.append(escaped);
+			}
+		}
+		return result.toString();
+	}
+
+	private static byte[] decodeHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,387 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Writes the audit statements of the server (registrations, logins, logouts, file uploads) in the background.
+ * <p>
+ * Statements are put in a bounded queue and return immediately - a protocol thread never waits for the SQL
+ * server. A single writer thread takes whatever accumulated in the queue and sends it in submission order,
+ * merging consecutive inserts into the same table into one multi-row INSERT, and sends all of it in BATCH
+ * requests (see {@link #BATCH_COMMAND}). If a merged insert fails (for example one of its rows breaks a
+ * constraint) its rows are retried one by one, so one bad row does not lose the others.
+ * <p>
+ * A request that gets no response at all (a timeout or a broken connection) may still have been executed, or
+ * still be executing. Every BATCH therefore carries an id of its own (see {@link #BATCH_ID_SEPARATOR}), and the
+ * SQL server answers a BATCH it already got with the results of the first one instead of executing it again - so
+ * an unanswered BATCH is sent again, with a growing backoff, at most {@value #MAX_SEND_ATTEMPTS} times. After that
+ * (or once the writer is closing) its statements are given up and counted as failed.
+ * <p>
+ * Statements are sent one by one only if the SQL server answers a BATCH with something that is not a BATCH
+ * response, that is if it does not know BATCH. A single statement can not be sent again safely, so one that
+ * gets no response is counted as failed at once.
+ * <p>
+ * When the queue is full the new statement is dropped and counted, and the server keeps going.
+ */
+public class SqlWriteBehind {
+
+	private static final long IDLE_POLL_MILLIS = 100;
+	private static final long MIN_RETRY_MILLIS = 100;
+	private static final long MAX_RETRY_MILLIS = 5_000;
+	private static final int MAX_SEND_ATTEMPTS = 8;
+
+	/**
+	 * A request holding several statements: BATCH_COMMAND followed by every statement preceded by
+	 * BATCH_SEPARATOR. The SQL server executes them in order and stops at the first one that fails, and answers
+	 * with BATCH_COMMAND followed by the result of every executed statement, separated the same way.
+	 * Values must therefore never contain the separator.
+	 */
+	public static final String BATCH_COMMAND = "BATCH";
+	public static final char BATCH_SEPARATOR = '\u001f';
+	/**
+	 * Separates BATCH_COMMAND from the id of the batch: "BATCH#&lt;id&gt;". A SQL server executes a batch id once, and
+	 * answers the same id again with the results of that execution.
+	 */
+	public static final char BATCH_ID_SEPARATOR = '#';
+	private static final int MAX_BATCH_STATEMENTS = 100;
+
+	private final BlockingQueue<Statement> queue;
+	private final int maxBatchRows;
+	private final Function<String, String> executor;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	// written by the writer thread only
+	private volatile long processed = 0;
+	private volatile long failed = 0;
+	private volatile long batches = 0;
+	private volatile long requests = 0;
+	private volatile int maxBatchSize = 0;
+	private boolean batchSupported = true; // until the SQL server answers a BATCH with something else
+	// batch ids are this writer's prefix and a counter, so the ids of another run never collide with them
+	private final String batchIdPrefix = Long.toHexString(System.currentTimeMillis())
+			+ Long.toHexString(Double.doubleToLongBits(Math.random())) + "-";
+	private long nextBatchId = 0;
+	private final Object flushLock = new Object();
+
+	/**
+	 * @param capacity     how many statements may wait in the queue before new ones are dropped
+	 * @param maxBatchRows the maximal number of rows merged into one INSERT
+	 * @param executor     sends one SQL statement and returns the response of the SQL server, or null if there
+	 *                     was none (the statement may or may not have been executed)
+	 */
+	public SqlWriteBehind(int capacity, int maxBatchRows, Function<String, String> executor) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.maxBatchRows = maxBatchRows;
+		this.executor = executor;
+		this.writer = new Thread(this::writeLoop, "sql-write-behind");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queues one row for {@code INSERT INTO table (columns) VALUES values}.
+	 * @param values the row in parentheses, already escaped
+	 * @return false if the queue was full and the row was dropped
+	 */
+	public boolean insert(String table, String columns, String values) {
+		return submit(new Statement("INSERT INTO " + table + " (" + columns + ") VALUES ", values));
+	}
+
+	/**
+	 * Queues a statement that is sent as is, in order with the inserts queued before and after it.
+	 * @return false if the queue was full and the statement was dropped
+	 */
+	public boolean execute(String sql) {
+		return submit(new Statement(sql, null));
+	}
+
+	/**
+	 * Waits until everything queued before this call was sent to the SQL server.
+	 * @return false if that did not happen within the timeout
+	 */
+	public boolean flush(long timeoutMillis) throws InterruptedException {
+		long target = submitted.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (flushLock) {
+			while (processed < target) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0 || !writer.isAlive()) {
+					return false;
+				}
+				flushLock.wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting statements, sends everything still queued and stops the writer.
+	 * @return false if the queue was not empty when the timeout passed
+	 */
+	public boolean close(long timeoutMillis) throws InterruptedException {
+		running = false;
+		writer.join(timeoutMillis);
+		return queue.isEmpty();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return how many requests were sent to the SQL server, merged inserts count once
+	 */
+	public long getRequests() {
+		return requests;
+	}
+
+	public double getAverageBatchSize() {
+		long b = batches;
+		return b == 0 ? 0 : (double) processed / b;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	private boolean submit(Statement statement) {
+		if (!running || !queue.offer(statement)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		submitted.incrementAndGet();
+		return true;
+	}
+
+	private void writeLoop() {
+		List<Statement> batch = new ArrayList<>();
+		while (running || !queue.isEmpty()) {
+			try {
+				Statement first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch);
+				write(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				System.err.println("SQL write-behind error: " + e.getMessage());
+			} finally {
+				done(batch.size());
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(List<Statement> batch) throws InterruptedException {
+		batches++;
+		if (batch.size() > maxBatchSize) {
+			maxBatchSize = batch.size();
+		}
+
+		// the statements to send, and for a merged insert the range of its rows in the batch
+		List<String> sqls = new ArrayList<>();
+		List<int[]> mergedRows = new ArrayList<>();
+		int i = 0;
+		while (i < batch.size()) {
+			Statement statement = batch.get(i);
+			if (statement.values == null) {
+				sqls.add(statement.sql);
+				mergedRows.add(null);
+				i++;
+				continue;
+			}
+
+			// merge the following inserts into the same table (and columns), keeping the order of everything else
+			int end = i + 1;
+			while (end < batch.size() && end - i < maxBatchRows && statement.sql.equals(batch.get(end).sql)) {
+				end++;
+			}
+			sqls.add(end - i == 1 ? statement.sql + statement.values : merge(batch, i, end));
+			mergedRows.add(end - i == 1 ? null : new int[]{i, end});
+			i = end;
+		}
+
+		// A BATCH stops at its first failing statement. The rows of a failed merged insert are then sent one by
+		// one and the rest of the statements follow, so the order of the statements is kept in any case.
+		// A failure of a merged insert is not counted, only the rows that then fail on their own are.
+		int next = 0;
+		while (next < sqls.size()) {
+			int to = Math.min(sqls.size(), next + MAX_BATCH_STATEMENTS);
+			int failedAt = sendBatch(sqls, next, to);
+			if (failedAt < 0) {
+				// whether the unanswered statement and the ones after it were executed is not known
+				for (int k = unansweredFrom(failedAt); k < to; k++) {
+					int[] rows = mergedRows.get(k);
+					failed += rows == null ? 1 : rows[1] - rows[0];
+				}
+				next = to;
+				continue;
+			}
+			if (failedAt == to) {
+				next = to;
+				continue;
+			}
+			int[] rows = mergedRows.get(failedAt);
+			if (rows == null) {
+				failed++;
+			} else {
+				for (int row = rows[0]; row < rows[1]; row++) {
+					if (!trySend(batch.get(row).sql + batch.get(row).values)) { // an unanswered row fails too
+						failed++;
+					}
+				}
+			}
+			next = failedAt + 1;
+		}
+	}
+
+	private static String merge(List<Statement> batch, int from, int to) {
+		StringBuilder sql = new StringBuilder(batch.get(from).sql);
+		for (int row = from; row < to; row++) {
+			if (row > from) {
+				sql.append(", ");
+			}
+			sql.append(batch.get(row).values);
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * Sends the statements from {@code from} to {@code to} in order, as one BATCH request unless the SQL server
+	 * does not know BATCH.
+	 * @return the index of the first statement that failed - the ones before it took effect and the ones after
+	 * it were not executed - {@code to} if all of them succeeded, or {@link #unanswered(int)} of the first statement
+	 * the SQL server never answered - whether it and the ones after it were executed is not known
+	 */
+	private int sendBatch(List<String> sqls, int from, int to) throws InterruptedException {
+		if (!batchSupported) {
+			for (int k = from; k < to; k++) {
+				String response = executeOnce(sqls.get(k));
+				if (response == null) {
+					return unanswered(k);
+				}
+				if (response.startsWith("ERROR")) {
+					return k;
+				}
+			}
+			return to;
+		}
+
+		StringBuilder request = new StringBuilder(BATCH_COMMAND).append(BATCH_ID_SEPARATOR)
+				.append(batchIdPrefix).append(nextBatchId++);
+		for (int k = from; k < to; k++) {
+			request.append(BATCH_SEPARATOR).append(sqls.get(k));
+		}
+		String response = send(request.toString());
+		if (response == null) {
+			return unanswered(from);
+		}
+
+		if (!response.startsWith(BATCH_COMMAND + BATCH_SEPARATOR)) {
+			// an answer that is not a BATCH answer: the SQL server took the whole request for one statement and
+			// rejected it, nothing was executed - from now on the statements are sent one by one
+			System.err.println("SQL write-behind: the SQL server does not support BATCH (" + response
+					+ "), sending statements one by one");
+			batchSupported = false;
+			return sendBatch(sqls, from, to);
+		}
+
+		String[] results = response.substring(BATCH_COMMAND.length() + 1).split(String.valueOf(BATCH_SEPARATOR), -1);
+		for (int k = 0; k < results.length; k++) {
+			if (results[k].startsWith("ERROR")) {
+				return from + k;
+			}
+		}
+		// every executed statement succeeded, anything that was not answered is sent again
+		return results.length >= to - from ? to : sendBatch(sqls, from + results.length, to);
+	}
+
+	private static int unanswered(int index) {
+		return -1 - index;
+	}
+
+	private static int unansweredFrom(int failedAt) {
+		return -1 - failedAt;
+	}
+
+	private boolean trySend(String sql) throws InterruptedException {
+		return sendBatch(Collections.singletonList(sql), 0, 1) == 1;
+	}
+
+	/**
+	 * Sends a BATCH request, and sends it again with a growing backoff while it gets no response - the SQL
+	 * server executes a batch id only once.
+	 * @return the response, or null if there was none after {@value #MAX_SEND_ATTEMPTS} attempts, or while the
+	 * writer is closing
+	 */
+	private String send(String request) throws InterruptedException {
+		long backoff = MIN_RETRY_MILLIS;
+		for (int attempt = 1; ; attempt++) {
+			String response = executeOnce(request);
+			if (response != null || !running || attempt == MAX_SEND_ATTEMPTS) {
+				return response;
+			}
+			Thread.sleep(backoff);
+			backoff = Math.min(backoff * 2, MAX_RETRY_MILLIS);
+		}
+	}
+
+	private String executeOnce(String request) {
+		requests++;
+		return executor.apply(request);
+	}
+
+	private void done(int count) {
+		if (count == 0) {
+			return;
+		}
+		synchronized (flushLock) {
+			processed += count;
+			flushLock.notifyAll();
+		}
+	}
+
+	/**
+	 * A queued statement: an insert is kept as its "INSERT INTO ... VALUES " prefix and its row,
+	 * anything else as the whole statement with no values.
+	 */
+	private static class Statement {
+		final String sql;
+		final String values;
+
+		Statement(String sql, String values) {
+			this.sql = sql;
+			this.values = values;
+		}
+	}
+}
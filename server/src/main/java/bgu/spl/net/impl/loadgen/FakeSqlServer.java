@@ -0,0 +1,124 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.impl.data.SqlRows;
+import bgu.spl.net.impl.data.SqlWriteBehind;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stand-in for data/sql_server.py that stores nothing, so a load test measures the STOMP server and not SQLite.
+ * <p>
+ * It speaks the same protocol: NUL terminated requests answered in order on every connection. Every statement
+ * succeeds, a BATCH gets one SUCCESS per statement and a ROWS query an empty result - the server starts with no
+ * registered users and every login adds a new one. An optional delay before every response simulates a slow
+ * SQL server.
+ */
+public class FakeSqlServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final long delayMillis;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+
+    /**
+     * Listens on the loopback address, where Database connects.
+     */
+    public FakeSqlServer(int port, long delayMillis) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.delayMillis = delayMillis;
+        Thread acceptor = new Thread(this::acceptLoop, "fake-sql-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the requests answered so far, a BATCH counts once
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the statements answered so far, every statement of a BATCH counts
+     */
+    public long getStatements() {
+        return statements.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread handler = new Thread(() -> serve(socket), "fake-sql-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != 0) {
+                    request.write(b);
+                    continue;
+                }
+                String response = respond(request.toString("UTF-8"));
+                request.reset();
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                out.write(response.getBytes(StandardCharsets.UTF_8));
+                out.write(0);
+                if (in.available() == 0) {
+                    out.flush(); // pipelined requests are answered in one write
+                }
+            }
+        } catch (IOException e) {
+            // the server went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String respond(String request) {
+        requests.increment();
+        String batch = SqlWriteBehind.BATCH_COMMAND + SqlWriteBehind.BATCH_SEPARATOR;
+        if (request.startsWith(batch)) {
+            StringBuilder response = new StringBuilder(SqlWriteBehind.BATCH_COMMAND);
+            for (int i = 0; i < request.length(); i++) {
+                if (request.charAt(i) == SqlWriteBehind.BATCH_SEPARATOR) {
+                    response.append(SqlWriteBehind.BATCH_SEPARATOR).append("SUCCESS");
+                    statements.increment();
+                }
+            }
+            return response.toString();
+        }
+        statements.increment();
+        if (request.startsWith(SqlRows.ROWS_COMMAND + SqlRows.FIELD_SEPARATOR)) {
+            return SqlRows.ROWS_COMMAND + SqlRows.RECORD_SEPARATOR; // no columns and no rows
+        }
+        return "SUCCESS";
+    }
+}
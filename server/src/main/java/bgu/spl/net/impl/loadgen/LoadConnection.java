@@ -0,0 +1,225 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.impl.stomp.StompCommand;
+import bgu.spl.net.impl.stomp.StompFrame;
+import bgu.spl.net.impl.stomp.StompMessageEncoderDecoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * One simulated client: it connects, logs in, subscribes to its channels and then, if it is a publisher, sends the
+ * SEND frames its loop tells it to. Touched only by the thread of its {@link LoadLoop}.
+ */
+class LoadConnection {
+
+    static final String SENT_NANOS = "sent-nanos:";
+
+    private final int index;
+    private final String[] channels; // the channels it subscribes to
+    private final LoadGenerator generator;
+    private final LoadStats stats;
+    private final StompMessageEncoderDecoder encdec = new StompMessageEncoderDecoder();
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private SocketChannel channel;
+    private SelectionKey key;
+    private long connectStart;
+    private boolean tcpConnected = false;
+    private boolean connected = false; // CONNECTED arrived
+    private boolean ready = false;
+    private boolean closed = false;
+
+    LoadConnection(int index, String[] channels, LoadGenerator generator, LoadStats stats) {
+        this.index = index;
+        this.channels = channels;
+        this.generator = generator;
+        this.stats = stats;
+    }
+
+    void connecting(SocketChannel channel, long connectStart) {
+        this.channel = channel;
+        this.connectStart = connectStart;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    boolean isReady() {
+        return ready && !closed;
+    }
+
+    /**
+     * @return true while frames wait to be written, the publisher is then skipped instead of queueing more
+     */
+    boolean isBacklogged() {
+        return !writeQueue.isEmpty();
+    }
+
+    void finishConnect() {
+        try {
+            if (!channel.finishConnect()) {
+                return;
+            }
+        } catch (IOException e) {
+            fail("connect: " + e.getMessage());
+            return;
+        }
+        tcpConnected = true;
+        generator.connectDone();
+        key.interestOps(SelectionKey.OP_READ);
+        send("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:load" + index + "\npasscode:load\n\n");
+    }
+
+    void read(ByteBuffer buffer) {
+        int read;
+        try {
+            buffer.clear();
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read == -1) {
+            stats.closedByServer.increment();
+            if (!connected) {
+                fail("closed before CONNECTED");
+            } else {
+                close();
+            }
+            return;
+        }
+        buffer.flip();
+        for (StompFrame frame : encdec.decode(buffer)) {
+            received(frame);
+        }
+    }
+
+    void continueWrite() {
+        try {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer next = writeQueue.peek();
+                channel.write(next);
+                if (next.hasRemaining()) {
+                    return;
+                }
+                writeQueue.remove();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            stats.error("write: " + e.getMessage());
+            close();
+        }
+    }
+
+    void publish(String frame) {
+        send(frame);
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private void received(StompFrame frame) {
+        StompCommand command = frame.getCommand();
+        if (command == StompCommand.MESSAGE) {
+            delivered(frame);
+        } else if (command == StompCommand.CONNECTED) {
+            connected = true;
+            stats.connected.increment();
+            stats.connectLatency.recordSince(connectStart);
+            for (int i = 0; i < channels.length; i++) {
+                String receipt = i == channels.length - 1 ? "receipt:ready\n" : "";
+                send("SUBSCRIBE\ndestination:" + channels[i] + "\nid:" + i + "\n" + receipt + "\n");
+            }
+            if (channels.length == 0) {
+                ready();
+            }
+        } else if (command == StompCommand.RECEIPT) {
+            ready();
+        } else if (command == StompCommand.ERROR) {
+            String message = frame.getHeader(StompFrame.MESSAGE);
+            if (connected) {
+                stats.error(message);
+                close();
+            } else {
+                fail(message);
+            }
+        }
+    }
+
+    private void ready() {
+        if (!ready) {
+            ready = true;
+            stats.ready.increment();
+        }
+    }
+
+    private void delivered(StompFrame frame) {
+        stats.delivered.increment();
+        String body = frame.getBodyAsString();
+        int at = body.indexOf(SENT_NANOS);
+        if (at == -1) {
+            return;
+        }
+        long sent = 0;
+        for (int i = at + SENT_NANOS.length(); i < body.length() && Character.isDigit(body.charAt(i)); i++) {
+            sent = sent * 10 + (body.charAt(i) - '0');
+        }
+        if (generator.isMeasured(sent)) {
+            stats.measuredDelivered.increment();
+            stats.deliverLatency.recordSince(sent);
+        }
+    }
+
+    private void fail(String reason) {
+        if (!connected) {
+            stats.failed.increment();
+        }
+        if (!tcpConnected) {
+            tcpConnected = true; // done trying
+            generator.connectDone();
+        }
+        stats.error(reason);
+        close();
+    }
+
+    private void send(String frame) {
+        if (closed) {
+            return;
+        }
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+        buffer.put(bytes).put((byte) 0);
+        buffer.flip();
+        if (!writeQueue.isEmpty()) {
+            writeQueue.add(buffer);
+            return;
+        }
+        try {
+            channel.write(buffer);
+        } catch (IOException e) {
+            stats.error("write: " + e.getMessage());
+            close();
+            return;
+        }
+        if (buffer.hasRemaining()) {
+            writeQueue.add(buffer);
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+}
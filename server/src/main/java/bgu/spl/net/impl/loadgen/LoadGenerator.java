@@ -0,0 +1,510 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.srv.metrics.Histogram;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An end to end load test of the STOMP server: thousands of clients on localhost connect, subscribe to game
+ * channels and publish game event reports, and the latency from the time a SEND was due until every subscriber got
+ * its MESSAGE is measured with the timestamp in the body of the report.
+ * <p>
+ * With {@code --server tpc|virtual|reactor|multireactor} it starts the server itself, in a JVM of its own with the same
+ * class path, together with a {@link FakeSqlServer} in place of the Python SQL server, and stops both at the end
+ * (the 'stats' of the server are in its log). Otherwise it runs against the server at {@code --host}/{@code --port}.
+ * <p>
+ * The phases: connect (at most {@code --max-pending-connects} connects in flight), subscribe (every client
+ * subscribes to {@code --subscriptions} channels drawn from the channel distribution and waits for a receipt),
+ * publish ({@code --rate} SENDs per second in total from the first {@code --publishers} clients, for
+ * {@code --warmup} plus {@code --duration} seconds, only the latter measured) and drain (until every expected
+ * MESSAGE arrived or {@code --drain} seconds passed). The result is a JSON summary, to stdout or {@code --out}.
+ */
+public class LoadGenerator {
+
+    private static final String[] TEAMS = {
+            "Germany", "Japan", "Spain", "Costa_Rica", "Argentina", "Saudi_Arabia", "Mexico", "Poland",
+            "France", "Australia", "Brazil", "Serbia", "Portugal", "Ghana", "England", "Iran"
+    };
+    private static final long PHASE_TIMEOUT_MILLIS = 120_000;
+
+    private final Map<String, String> options;
+    private final LoadStats stats = new LoadStats();
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int publishers;
+    private final int subscriptions;
+    private final String[] channels;
+    private final double[] cumulativeWeights; // of the channel distribution
+    private final int[] subscriberCounts; // per channel
+    private final Map<String, Integer> channelIndex = new LinkedHashMap<>();
+    private final String bodyPadding;
+
+    private final Object connectLock = new Object();
+    private int pendingConnects = 0;
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureUntil = Long.MIN_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+            return;
+        }
+        if (options.containsKey("help")) {
+            usage();
+            return;
+        }
+        new LoadGenerator(options).run();
+        System.exit(0); // the fake SQL server and the loops are daemons, but the summary is all there is to wait for
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadGenerator [--server tpc|virtual|reactor|multireactor] [--host 127.0.0.1] [--port 7777]"
+                + " [--connections 1000] [--publishers 50] [--channels 64] [--distribution zipf|uniform]"
+                + " [--zipf-exponent 1.0] [--subscriptions 2] [--rate 5000] [--warmup 2] [--duration 10]"
+                + " [--drain 5] [--body-size 512] [--io-threads 2] [--max-pending-connects 256] [--seed 42]"
+                + " [--label name] [--out summary.json] [--no-fake-sql] [--sql-delay-ms 0]"
+                + " [--server-opts \"-Xmx1g ...\"]");
+    }
+
+    LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.host = option("host", "127.0.0.1");
+        this.port = Integer.parseInt(option("port", "7777"));
+        this.connections = Integer.parseInt(option("connections", "1000"));
+        this.publishers = Math.min(connections, Integer.parseInt(option("publishers", "50")));
+        int channelCount = Integer.parseInt(option("channels", "64"));
+        this.subscriptions = Math.min(channelCount, Integer.parseInt(option("subscriptions", "2")));
+
+        this.channels = new String[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            // every pair of teams once, then again with a round number
+            int pair = i % (TEAMS.length * (TEAMS.length - 1));
+            String home = TEAMS[pair / (TEAMS.length - 1)];
+            String away = TEAMS[(pair / (TEAMS.length - 1) + 1 + pair % (TEAMS.length - 1)) % TEAMS.length];
+            int round = i / (TEAMS.length * (TEAMS.length - 1));
+            channels[i] = "/" + home + "_" + away + (round == 0 ? "" : "_" + round);
+            channelIndex.put(channels[i], i);
+        }
+
+        double[] weights = new double[channelCount];
+        String distribution = option("distribution", "zipf");
+        double exponent = Double.parseDouble(option("zipf-exponent", "1.0"));
+        for (int i = 0; i < channelCount; i++) {
+            if (distribution.equals("uniform")) {
+                weights[i] = 1;
+            } else if (distribution.equals("zipf")) {
+                weights[i] = 1 / Math.pow(i + 1, exponent); // a few popular games, a long tail
+            } else {
+                throw new IllegalArgumentException("unknown distribution " + distribution);
+            }
+        }
+        this.cumulativeWeights = new double[channelCount];
+        double total = 0;
+        for (int i = 0; i < channelCount; i++) {
+            total += weights[i];
+            cumulativeWeights[i] = total;
+        }
+        this.subscriberCounts = new int[channelCount];
+
+        int bodySize = Integer.parseInt(option("body-size", "512"));
+        char[] padding = new char[Math.max(0, bodySize - 300)]; // about the size of the rest of a report
+        Arrays.fill(padding, 'x');
+        this.bodyPadding = new String(padding);
+    }
+
+    private void run() throws Exception {
+        FakeSqlServer sql = null;
+        Process server = null;
+        String mode = option("server", null);
+        if (mode != null && !options.containsKey("no-fake-sql")) {
+            sql = new FakeSqlServer(7778, Long.parseLong(option("sql-delay-ms", "0")));
+        }
+        File serverLog = null;
+        try {
+            if (mode != null) {
+                serverLog = File.createTempFile("loadgen-server-", ".log");
+                server = startServer(mode, serverLog);
+            }
+            Map<String, Object> summary = test(mode);
+            if (sql != null) {
+                Map<String, Object> sqlSummary = new LinkedHashMap<>();
+                sqlSummary.put("requests", sql.getRequests());
+                sqlSummary.put("statements", sql.getStatements());
+                summary.put("fake_sql", sqlSummary);
+            }
+            if (serverLog != null) {
+                summary.put("server_log", serverLog.getPath());
+            }
+            String json = toJson(summary, "") + "\n";
+            String out = option("out", null);
+            if (out == null) {
+                System.out.print(json);
+            } else {
+                Files.write(Paths.get(out), json.getBytes(StandardCharsets.UTF_8));
+                System.err.println("Summary written to " + out);
+            }
+        } finally {
+            if (server != null) {
+                stopServer(server);
+            }
+            if (sql != null) {
+                sql.close();
+            }
+        }
+    }
+
+    private Map<String, Object> test(String mode) throws Exception {
+        int ioThreads = Integer.parseInt(option("io-threads", "2"));
+        int maxPendingConnects = Integer.parseInt(option("max-pending-connects", "256"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "2")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "10")));
+        long drainMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option("drain", "5")));
+        double rate = Double.parseDouble(option("rate", "5000"));
+        Random random = new Random(Long.parseLong(option("seed", "42")));
+
+        LoadLoop[] loops = new LoadLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new LoadLoop(this, stats);
+            Thread thread = new Thread(loops[i], "loadgen-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // connect
+        System.err.println("Connecting " + connections + " clients to " + host + ":" + port);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            synchronized (connectLock) {
+                while (pendingConnects >= maxPendingConnects) {
+                    connectLock.wait();
+                }
+                pendingConnects++;
+            }
+            LoadConnection connection = new LoadConnection(i, pickSubscriptions(random), this, stats);
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            connection.connecting(channel, System.nanoTime());
+            try {
+                channel.connect(new InetSocketAddress(host, port));
+            } catch (IOException e) {
+                channel.close();
+                stats.failed.increment();
+                stats.error("connect: " + e.getMessage());
+                connectDone();
+                continue;
+            }
+            loops[i % loops.length].register(connection, i < publishers);
+        }
+        waitFor(() -> stats.connected.sum() + stats.failed.sum() >= connections, PHASE_TIMEOUT_MILLIS);
+        long connectNanos = System.nanoTime() - connectStart;
+        waitFor(() -> stats.ready.sum() + stats.failed.sum() + stats.closedByServer.sum() >= connections,
+                PHASE_TIMEOUT_MILLIS);
+        System.err.println("Connected " + stats.connected.sum() + ", ready " + stats.ready.sum() + ", failed "
+                + stats.failed.sum() + " in " + TimeUnit.NANOSECONDS.toMillis(connectNanos) + "ms");
+
+        // publish
+        long publishStart = System.nanoTime();
+        measureFrom = publishStart + warmupNanos;
+        measureUntil = measureFrom + durationNanos;
+        for (LoadLoop loop : loops) {
+            loop.startPublishing(publishStart, measureUntil, publishers == 0 ? 0 : rate * loop.getPublisherCount() / publishers);
+        }
+        System.err.println("Publishing " + rate + " SENDs per second for " + TimeUnit.NANOSECONDS.toSeconds(
+                warmupNanos + durationNanos) + "s");
+        TimeUnit.NANOSECONDS.sleep(measureUntil - System.nanoTime());
+
+        // drain
+        waitFor(() -> stats.delivered.sum() >= stats.expected.sum(), drainMillis);
+        for (LoadLoop loop : loops) {
+            loop.stop();
+        }
+        return summary(mode, rate, connectNanos, durationNanos);
+    }
+
+    private Map<String, Object> summary(String mode, double rate, long connectNanos, long durationNanos) {
+        double seconds = durationNanos / 1e9;
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("label", option("label", mode == null ? host + ":" + port : mode));
+        summary.put("server", mode == null ? "external" : mode);
+
+        Map<String, Object> connect = new LinkedHashMap<>();
+        connect.put("requested", connections);
+        connect.put("connected", stats.connected.sum());
+        connect.put("ready", stats.ready.sum());
+        connect.put("failed", stats.failed.sum());
+        connect.put("seconds", round(connectNanos / 1e9));
+        connect.put("per_second", round(stats.connected.sum() / (connectNanos / 1e9)));
+        connect.put("latency_ms", percentiles(stats.connectLatency));
+        summary.put("connect", connect);
+
+        Map<String, Object> subscribe = new LinkedHashMap<>();
+        subscribe.put("channels", channels.length);
+        subscribe.put("distribution", option("distribution", "zipf"));
+        subscribe.put("per_connection", subscriptions);
+        subscribe.put("busiest_channel_subscribers", Arrays.stream(subscriberCounts).max().orElse(0));
+        summary.put("subscribe", subscribe);
+
+        Map<String, Object> publish = new LinkedHashMap<>();
+        publish.put("publishers", publishers);
+        publish.put("target_per_second", rate);
+        publish.put("sent", stats.published.sum());
+        publish.put("skipped", stats.skipped.sum());
+        publish.put("measured_seconds", round(seconds));
+        summary.put("publish", publish);
+
+        Map<String, Object> deliver = new LinkedHashMap<>();
+        deliver.put("expected", stats.expected.sum());
+        deliver.put("delivered", stats.delivered.sum());
+        deliver.put("missing", Math.max(0, stats.expected.sum() - stats.delivered.sum()));
+        deliver.put("measured", stats.measuredDelivered.sum());
+        deliver.put("per_second", round(stats.measuredDelivered.sum() / seconds));
+        deliver.put("latency_ms", percentiles(stats.deliverLatency));
+        summary.put("deliver", deliver);
+
+        summary.put("errors", stats.errors.sum());
+        summary.put("closed_by_server", stats.closedByServer.sum());
+        if (stats.firstError != null) {
+            summary.put("first_error", stats.firstError);
+        }
+        return summary;
+    }
+
+    // --- called by the loops ---
+
+    void connectDone() {
+        synchronized (connectLock) {
+            pendingConnects--;
+            connectLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if a SEND due at {@code sentNanos} is in the measured window
+     */
+    boolean isMeasured(long sentNanos) {
+        return sentNanos >= measureFrom && sentNanos < measureUntil;
+    }
+
+    String nextPublishChannel() {
+        return channels[pick(ThreadLocalRandom.current())];
+    }
+
+    int getSubscriberCount(String channel) {
+        return subscriberCounts[channelIndex.get(channel)];
+    }
+
+    /**
+     * @return a SEND like the 'report' command of the client sends, with the time it was due among its updates
+     */
+    String sendFrame(String channel, long dueNanos) {
+        int underscore = channel.indexOf('_');
+        String home = channel.substring(1, underscore);
+        String away = channel.substring(underscore + 1);
+        return "SEND\n"
+                + "destination:" + channel + "\n"
+                + "file-name:loadgen.json\n"
+                + "\n"
+                + "user:loadgen\n"
+                + "team a:" + home + "\n"
+                + "team b:" + away + "\n"
+                + "event name:goal!!!!\n"
+                + "time:" + ThreadLocalRandom.current().nextInt(5400) + "\n"
+                + "general game updates:\n"
+                + LoadConnection.SENT_NANOS + dueNanos + "\n"
+                + "active:true\n"
+                + "team a updates:\n"
+                + "goals:1\n"
+                + "possession:51%\n"
+                + "team b updates:\n"
+                + "goals:0\n"
+                + "possession:49%\n"
+                + "description:\n"
+                + "A long shot from outside the box finds the top corner. " + bodyPadding + "\n";
+    }
+
+    // --- helpers ---
+
+    private String[] pickSubscriptions(Random random) {
+        List<Integer> picked = new ArrayList<>();
+        while (picked.size() < subscriptions) {
+            int channel = pick(random);
+            if (!picked.contains(channel)) {
+                picked.add(channel);
+            }
+        }
+        String[] names = new String[picked.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = channels[picked.get(i)];
+            subscriberCounts[picked.get(i)]++;
+        }
+        return names;
+    }
+
+    private int pick(Random random) {
+        double point = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, point);
+        return Math.min(index >= 0 ? index : -index - 1, cumulativeWeights.length - 1);
+    }
+
+    private Process startServer(String mode, File log) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Dstomp.log.dir=" + Files.createTempDirectory("loadgen-stomp-log"));
+        String serverOptions = option("server-opts", "").trim();
+        if (!serverOptions.isEmpty()) {
+            command.addAll(Arrays.asList(serverOptions.split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("bgu.spl.net.impl.stomp.StompServer");
+        command.add(Integer.toString(port));
+        command.add(mode);
+        System.err.println("Starting the " + mode + " server, its output goes to " + log);
+        Process server = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(host, port), 1000);
+                return server;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.currentTimeMillis() > deadline) {
+                    server.destroy();
+                    throw new IOException("the server did not start, see " + log);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void stopServer(Process server) throws InterruptedException {
+        try {
+            OutputStream console = server.getOutputStream();
+            console.write("stats\nexit\n".getBytes(StandardCharsets.US_ASCII)); // the metrics go to its log
+            console.flush();
+        } catch (IOException e) {
+            // it is gone already
+        }
+        if (!server.waitFor(10, TimeUnit.SECONDS)) {
+            server.destroyForcibly();
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.holds() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (name.equals("no-fake-sql") || name.equals("help")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("missing value of --" + name);
+            }
+        }
+        return options;
+    }
+
+    private static Map<String, Object> percentiles(Histogram histogram) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", snapshot.getCount());
+        result.put("mean", millis(snapshot.getMean()));
+        result.put("p50", millis(snapshot.getPercentile(50)));
+        result.put("p90", millis(snapshot.getPercentile(90)));
+        result.put("p99", millis(snapshot.getPercentile(99)));
+        result.put("p99.9", millis(snapshot.getPercentile(99.9)));
+        result.put("max", millis(snapshot.getMax()));
+        return result;
+    }
+
+    private static double millis(double nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    /**
+     * Writes maps, strings and numbers as JSON, one member per line.
+     */
+    @SuppressWarnings("unchecked")
+    private static String toJson(Object value, String indent) {
+        if (value instanceof Map) {
+            StringBuilder json = new StringBuilder("{");
+            String inner = indent + "  ";
+            boolean first = true;
+            for (Map.Entry<String, Object> member : ((Map<String, Object>) value).entrySet()) {
+                json.append(first ? "\n" : ",\n").append(inner).append(quote(member.getKey())).append(": ")
+                        .append(toJson(member.getValue(), inner));
+                first = false;
+            }
+            return json.append('\n').append(indent).append('}').toString();
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        return quote(String.valueOf(value));
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
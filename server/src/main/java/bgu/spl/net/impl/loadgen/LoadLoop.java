@@ -0,0 +1,162 @@
+package bgu.spl.net.impl.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread serving some of the connections of a load test, and publishing for its publishers.
+ * <p>
+ * Publishing is open loop: the SENDs of the loop are due at a fixed rate from the start of the publishing phase,
+ * and every SEND carries the time it was due - not the time it was written - so a server that falls behind is
+ * charged for the whole delay instead of slowing the load down (no coordinated omission). A publisher that still
+ * has unwritten frames skips its turn, the skipped SENDs are counted.
+ */
+class LoadLoop implements Runnable {
+
+    // SENDs written in one go when the loop is behind, so it keeps reading meanwhile
+    private static final int MAX_PUBLISH_BURST = 1_000;
+
+    private final Selector selector;
+    private final LoadGenerator generator;
+    private final LoadStats stats;
+    private final ConcurrentLinkedQueue<LoadConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final List<LoadConnection> connections = new ArrayList<>();
+    private final List<LoadConnection> publishers = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile boolean running = true;
+
+    // the publishing phase, set before it starts
+    private volatile boolean publishing = false;
+    private volatile long publishStart;
+    private volatile long publishEnd;
+    private volatile double ratePerNano;
+    private long publishedByLoop = 0;
+
+    LoadLoop(LoadGenerator generator, LoadStats stats) throws IOException {
+        this.selector = Selector.open();
+        this.generator = generator;
+        this.stats = stats;
+    }
+
+    /**
+     * Hands a connection, with its connect started, to the loop. Called by the connecting thread.
+     */
+    void register(LoadConnection connection, boolean publisher) {
+        if (publisher) {
+            synchronized (publishers) {
+                publishers.add(connection);
+            }
+        }
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    int getPublisherCount() {
+        synchronized (publishers) {
+            return publishers.size();
+        }
+    }
+
+    void startPublishing(long start, long end, double sendsPerSecond) {
+        this.publishStart = start;
+        this.publishEnd = end;
+        this.ratePerNano = sendsPerSecond / 1e9;
+        this.publishing = sendsPerSecond > 0;
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(publishing ? 1 : 100);
+                registerPending();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                if (publishing) {
+                    publishDue();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            stats.error("selector: " + e);
+        } finally {
+            for (LoadConnection connection : connections) {
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void registerPending() throws IOException {
+        LoadConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            connections.add(connection);
+            boolean done = connection.getChannel().isConnected();
+            SelectionKey key = connection.getChannel().register(selector,
+                    done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            connection.setKey(key);
+            if (done) {
+                connection.finishConnect();
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        LoadConnection connection = (LoadConnection) key.attachment();
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isConnectable()) {
+            connection.finishConnect();
+            return;
+        }
+        if (key.isReadable()) {
+            connection.read(readBuffer);
+        }
+        if (key.isValid() && key.isWritable()) {
+            connection.continueWrite();
+        }
+    }
+
+    private void publishDue() {
+        long now = System.nanoTime();
+        if (now >= publishEnd) {
+            publishing = false;
+            now = publishEnd;
+        }
+        long due = (long) ((now - publishStart) * ratePerNano);
+        List<LoadConnection> senders = publishers; // not changed once publishing started
+        for (int burst = 0; publishedByLoop < due && burst < MAX_PUBLISH_BURST; burst++) {
+            long dueAt = publishStart + (long) (publishedByLoop / ratePerNano);
+            LoadConnection publisher = senders.get((int) (publishedByLoop % senders.size()));
+            publishedByLoop++;
+            if (!publisher.isReady() || publisher.isBacklogged()) {
+                stats.skipped.increment();
+                continue;
+            }
+            String channel = generator.nextPublishChannel();
+            stats.published.increment();
+            stats.expected.add(generator.getSubscriberCount(channel));
+            publisher.publish(generator.sendFrame(channel, dueAt));
+        }
+    }
+}
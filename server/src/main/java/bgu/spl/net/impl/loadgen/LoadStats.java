@@ -0,0 +1,35 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.srv.metrics.Histogram;
+import bgu.spl.net.srv.metrics.Metrics;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the connections of a load test measured, updated by all the loops at once.
+ */
+class LoadStats {
+
+    final LongAdder connected = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder ready = new LongAdder(); // connected, subscribed and the receipt of the last SUBSCRIBE arrived
+    final LongAdder closedByServer = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder published = new LongAdder();
+    final LongAdder skipped = new LongAdder(); // not sent because the publisher still had unwritten frames
+    final LongAdder expected = new LongAdder(); // deliveries the published frames should cause
+    final LongAdder delivered = new LongAdder();
+    final LongAdder measuredDelivered = new LongAdder(); // of frames published in the measured window
+    volatile String firstError;
+
+    // from starting to connect until CONNECTED
+    final Histogram connectLatency = Metrics.getInstance().latency("loadgen.connect.nanos");
+    // from the time a SEND was due until its MESSAGE arrived, for SENDs due in the measured window
+    final Histogram deliverLatency = Metrics.getInstance().latency("loadgen.deliver.nanos");
+
+    void error(String message) {
+        errors.increment();
+        if (firstError == null) {
+            firstError = message;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package bgu.spl.net.impl.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The log of one destination: the MESSAGE frames sent to it, in sequence order, in a directory of
+ * {@link LogSegment}s named after the sequence number of their first record.
+ * <p>
+ * A new segment is started when a record does not fit in the current one. Right after that, the oldest segments
+ * are deleted while the log is larger than the retention size or their newest record is older than the retention
+ * age - the current segment is never deleted.
+ * <p>
+ * Not thread safe, the caller appends and replays under the lock of the destination.
+ */
+public class DestinationLog {
+
+    /**
+     * Receives the records of a replay. The buffers are read only views of the mapped segment, valid as long as
+     * they are referenced.
+     */
+    public interface RecordConsumer {
+        /**
+         * @return false to stop the replay before this record, which is not consumed
+         */
+        boolean accept(long sequence, long timestamp, ByteBuffer head, ByteBuffer tail);
+    }
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("[0-9]{20}" + Pattern.quote(SEGMENT_SUFFIX));
+
+    private final Path directory;
+    private final MessageLog config;
+    private final List<LogSegment> segments = new ArrayList<>();
+
+    DestinationLog(Path directory, MessageLog config) throws IOException {
+        this.directory = directory;
+        this.config = config;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                if (isSegment(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(DestinationLog::firstSequenceOf));
+        for (Path file : files) {
+            segments.add(LogSegment.open(file, firstSequenceOf(file)));
+        }
+    }
+
+    /**
+     * @return the sequence number of the last record, 0 if the log is empty
+     */
+    public long getLastSequence() {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (!segments.get(i).isEmpty()) {
+                return segments.get(i).getLastSequence();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Appends a MESSAGE, as the encoded parts before and after its subscription header.
+     * The positions of {@code head} and {@code tail} are not changed.
+     */
+    public void append(long sequence, long timestamp, ByteBuffer head, ByteBuffer tail) throws IOException {
+        LogSegment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current == null || !current.append(sequence, timestamp, head.duplicate(), tail.duplicate())) {
+            int size = LogSegment.RECORD_HEADER_BYTES + head.remaining() + tail.remaining();
+            current = LogSegment.create(directory.resolve(segmentName(sequence)), sequence,
+                    Math.max(config.getSegmentBytes(), size));
+            segments.add(current);
+            current.append(sequence, timestamp, head.duplicate(), tail.duplicate());
+            applyRetention(timestamp);
+        }
+        if (config.isForce()) {
+            current.force();
+        }
+    }
+
+    /**
+     * Hands the records with a sequence number of at least {@code fromSequence} and a timestamp of at least
+     * {@code fromTimestamp} to the consumer, oldest first, until the consumer stops it.
+     * @return false if the consumer stopped the replay
+     */
+    public boolean replay(long fromSequence, long fromTimestamp, RecordConsumer consumer) {
+        for (int i = 0; i < segments.size(); i++) {
+            LogSegment segment = segments.get(i);
+            boolean beforeSequence = i + 1 < segments.size() && segments.get(i + 1).getFirstSequence() <= fromSequence;
+            if (segment.isEmpty() || beforeSequence || segment.getLastTimestamp() < fromTimestamp) {
+                continue;
+            }
+            if (!segment.replay(fromSequence, fromTimestamp, consumer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private void applyRetention(long now) throws IOException {
+        long size = 0;
+        for (LogSegment segment : segments) {
+            size += segment.getSize();
+        }
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.get(0);
+            boolean tooLarge = size > config.getRetentionBytes();
+            boolean tooOld = oldest.isEmpty() || oldest.getLastTimestamp() < now - config.getRetentionMillis();
+            if (!tooLarge && !tooOld) {
+                break;
+            }
+            size -= oldest.getSize();
+            segments.remove(0);
+            oldest.delete();
+        }
+    }
+
+    private static String segmentName(long firstSequence) {
+        return String.format("%020d%s", firstSequence, SEGMENT_SUFFIX);
+    }
+
+    private static boolean isSegment(Path file) {
+        return SEGMENT_NAME.matcher(file.getFileName().toString()).matches();
+    }
+
+    private static long firstSequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,181 @@
+package bgu.spl.net.impl.log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One file of a destination log: records appended one after the other, from the start of the file.
+ * <p>
+ * The file is created at its full size (sparse, so the unused part takes no disk space) and mapped once. Records
+ * are written with the {@link FileChannel} and read back through the mapping, which shares the page cache with
+ * the writes - a replay hands out views of the mapping and never copies a record into the heap.
+ * <p>
+ * A record is {@code [int length][int head length][long sequence][long timestamp][head][tail]}, its length
+ * counting the whole record. The unused part of the file is zeros, so the first record of length 0 is the end.
+ * <p>
+ * Not thread safe: the {@link DestinationLog} the segment belongs to is used under the lock of its destination.
+ */
+class LogSegment {
+
+    static final int RECORD_HEADER_BYTES = 4 + 4 + 8 + 8;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final long firstSequence;
+    private int writePosition = 0;
+    private long lastSequence;
+    private long firstTimestamp = Long.MAX_VALUE;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    private LogSegment(Path path, FileChannel channel, long firstSequence) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        this.firstSequence = firstSequence;
+        this.lastSequence = firstSequence - 1;
+    }
+
+    /**
+     * Creates an empty segment of {@code capacity} bytes whose first record will be {@code firstSequence}.
+     */
+    static LogSegment create(Path path, long firstSequence, int capacity) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity);
+        }
+        return new LogSegment(path, openChannel(path), firstSequence);
+    }
+
+    /**
+     * Opens a segment written by a previous run and finds where its records end.
+     */
+    static LogSegment open(Path path, long firstSequence) throws IOException {
+        LogSegment segment = new LogSegment(path, openChannel(path), firstSequence);
+        segment.recover();
+        return segment;
+    }
+
+    private static FileChannel openChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void recover() {
+        int position = 0;
+        while (position + RECORD_HEADER_BYTES <= mapped.capacity()) {
+            int length = mapped.getInt(position);
+            int headLength = mapped.getInt(position + 4);
+            if (length < RECORD_HEADER_BYTES || position + length > mapped.capacity()
+                    || headLength < 0 || headLength > length - RECORD_HEADER_BYTES) {
+                break; // the end, or a record the previous run did not finish writing
+            }
+            recorded(mapped.getLong(position + 8), mapped.getLong(position + 16));
+            position += length;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * @return false if the record does not fit in what is left of the segment
+     */
+    boolean append(long sequence, long timestamp, ByteBuffer head, ByteBuffer tail) throws IOException {
+        int length = RECORD_HEADER_BYTES + head.remaining() + tail.remaining();
+        if (writePosition + length > mapped.capacity()) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        header.putInt(length).putInt(head.remaining()).putLong(sequence).putLong(timestamp).flip();
+        ByteBuffer[] parts = {header, head, tail};
+        channel.position(writePosition);
+        long written = 0;
+        while (written < length) {
+            written += channel.write(parts);
+        }
+        writePosition += length;
+        recorded(sequence, timestamp);
+        return true;
+    }
+
+    private void recorded(long sequence, long timestamp) {
+        lastSequence = sequence;
+        firstTimestamp = Math.min(firstTimestamp, timestamp);
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+    }
+
+    /**
+     * Hands every record from {@code fromSequence} and {@code fromTimestamp} on to the consumer, as views of the
+     * mapping, until the consumer stops it.
+     * @return false if the consumer stopped the replay
+     */
+    boolean replay(long fromSequence, long fromTimestamp, DestinationLog.RecordConsumer consumer) {
+        int position = 0;
+        while (position < writePosition) {
+            int length = mapped.getInt(position);
+            int headLength = mapped.getInt(position + 4);
+            long sequence = mapped.getLong(position + 8);
+            long timestamp = mapped.getLong(position + 16);
+            if (sequence >= fromSequence && timestamp >= fromTimestamp) {
+                int headStart = position + RECORD_HEADER_BYTES;
+                if (!consumer.accept(sequence, timestamp, view(headStart, headLength),
+                        view(headStart + headLength, length - RECORD_HEADER_BYTES - headLength))) {
+                    return false;
+                }
+            }
+            position += length;
+        }
+        return true;
+    }
+
+    private ByteBuffer view(int position, int length) {
+        ByteBuffer view = mapped.duplicate();
+        view.position(position).limit(position + length);
+        return view.slice();
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    void delete() throws IOException {
+        channel.close();
+        // the mapping stays valid until it is garbage collected, views handed to a replay can still be written
+        Files.deleteIfExists(path);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    boolean isEmpty() {
+        return writePosition == 0;
+    }
+
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    int getCapacity() {
+        return mapped.capacity();
+    }
+
+    int getSize() {
+        return writePosition;
+    }
+}
@@ -0,0 +1,140 @@
+package bgu.spl.net.impl.log;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durable log of the MESSAGE frames sent to every destination, so a client that subscribes late can ask for
+ * what it missed. Every logged destination has a {@link DestinationLog} in its own directory under the log
+ * directory, open while the destination is in use.
+ * <p>
+ * Configured with system properties:
+ * <ul>
+ * <li>{@value #ENABLED_PROPERTY} - true turns the log on (off by default)</li>
+ * <li>{@value #DESTINATIONS_PROPERTY} - the destinations that are logged, separated by commas (default: all)</li>
+ * <li>{@value #DIR_PROPERTY} - the log directory (default {@value #DEFAULT_DIR}, in the working directory)</li>
+ * <li>{@value #SEGMENT_BYTES_PROPERTY} - the size of a segment file</li>
+ * <li>{@value #RETENTION_BYTES_PROPERTY} - the size a destination log is trimmed down to</li>
+ * <li>{@value #RETENTION_HOURS_PROPERTY} - the age after which records are deleted</li>
+ * <li>{@value #FORCE_PROPERTY} - true forces every record to the disk before the MESSAGE is sent. Otherwise a
+ * record is in the page cache when it is sent, so it survives a crash of the server but not of the machine</li>
+ * </ul>
+ * Retention works on whole segments and is applied when a destination starts a new segment.
+ */
+public class MessageLog {
+
+    public static final String ENABLED_PROPERTY = "stomp.log.enabled";
+    public static final String DESTINATIONS_PROPERTY = "stomp.log.destinations";
+    public static final String DIR_PROPERTY = "stomp.log.dir";
+    public static final String SEGMENT_BYTES_PROPERTY = "stomp.log.segment.bytes";
+    public static final String RETENTION_BYTES_PROPERTY = "stomp.log.retention.bytes";
+    public static final String RETENTION_HOURS_PROPERTY = "stomp.log.retention.hours";
+    public static final String FORCE_PROPERTY = "stomp.log.force";
+
+    private static final String DEFAULT_DIR = "stomp-log";
+    private static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_RETENTION_BYTES = 256L * 1024 * 1024;
+    private static final long DEFAULT_RETENTION_HOURS = 7 * 24;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final boolean force;
+    private final Set<String> destinations; // null: all of them
+
+    public MessageLog(Path directory, int segmentBytes, long retentionBytes, long retentionMillis, boolean force) {
+        this(directory, segmentBytes, retentionBytes, retentionMillis, force, null);
+    }
+
+    /**
+     * @param destinations the destinations that are logged, null for all of them
+     */
+    public MessageLog(Path directory, int segmentBytes, long retentionBytes, long retentionMillis, boolean force,
+            Set<String> destinations) {
+        if (segmentBytes <= LogSegment.RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("segment too small: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.force = force;
+        this.destinations = destinations;
+    }
+
+    /**
+     * @return the log configured by the system properties, or null if it is turned off
+     */
+    public static MessageLog fromSystemProperties() {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+            return null;
+        }
+        String allowed = System.getProperty(DESTINATIONS_PROPERTY);
+        Set<String> destinations = null;
+        if (allowed != null && !allowed.trim().isEmpty()) {
+            destinations = new HashSet<>();
+            for (String destination : allowed.split(",")) {
+                destinations.add(destination.trim());
+            }
+        }
+        return new MessageLog(
+                Paths.get(System.getProperty(DIR_PROPERTY, DEFAULT_DIR)),
+                Integer.getInteger(SEGMENT_BYTES_PROPERTY, DEFAULT_SEGMENT_BYTES),
+                Long.getLong(RETENTION_BYTES_PROPERTY, DEFAULT_RETENTION_BYTES),
+                TimeUnit.HOURS.toMillis(Long.getLong(RETENTION_HOURS_PROPERTY, DEFAULT_RETENTION_HOURS)),
+                Boolean.getBoolean(FORCE_PROPERTY),
+                destinations);
+    }
+
+    /**
+     * @return true if the messages of the destination are kept
+     */
+    public boolean isLogged(String destination) {
+        return destinations == null || destinations.contains(destination);
+    }
+
+    /**
+     * Opens the log of a destination, with the records of the previous runs.
+     */
+    public DestinationLog open(String destination) throws IOException {
+        return new DestinationLog(directory.resolve(directoryName(destination)), this);
+    }
+
+    /**
+     * Destination names are used as directory names, so everything but letters, digits, '-', '_' and '*' is
+     * escaped - a destination can not reach outside of the log directory.
+     */
+    private static String directoryName(String destination) {
+        if (destination.isEmpty()) {
+            return "%"; // never the result of escaping a name
+        }
+        try {
+            return URLEncoder.encode(destination, "UTF-8").replace(".", "%2E");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+
+    int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    long getRetentionBytes() {
+        return retentionBytes;
+    }
+
+    long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    boolean isForce() {
+        return force;
+    }
+}
@@ -8,15 +8,23 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ConnectionHandlerImpl<T> implements ConnectionHandler<T>, Runnable {
 
+    private static final int READ_BUFFER_SIZE = 1 << 13; //8k
+
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
     private BufferedInputStream in;
     private BufferedOutputStream out;
+    // ולא synchronized(out): thread וירטואלי שנחסם על ה-socket בתוך monitor תופס את ה-carrier thread שלו
+    private final ReentrantLock writeLock = new ReentrantLock();
     private volatile boolean connected = true;
+    private volatile long lastReadTime = System.currentTimeMillis();
+    private volatile long lastWriteTime = System.currentTimeMillis();
 
     public ConnectionHandlerImpl(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol) {
         this.sock = sock;
@@ -35,18 +43,23 @@ public class ConnectionHandlerImpl<T> implements ConnectionHandler<T>, Runnable
 
             // 2. לולאת קריאה (Read Loop)
             int read;
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                // מנסים לפענח בייט אחד. אם חזר אובייקט שלם - הלקוח סיים לשלוח הודעה
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
+            byte[] chunk = new byte[READ_BUFFER_SIZE];
+            while (!protocol.shouldTerminate() && connected && (read = in.read(chunk)) >= 0) {
+                lastReadTime = System.currentTimeMillis();
+                // מפענחים את כל מה שנקרא. כל אובייקט שחזר הוא הודעה שלמה מהלקוח
+                for (T nextMessage : encdec.decode(ByteBuffer.wrap(chunk, 0, read))) {
                     // מעבירים את ההודעה לפרוטוקול לעיבוד
                     protocol.process(nextMessage);
+                    if (protocol.shouldTerminate()) {
+                        break;
+                    }
                 }
             }
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
             close();
+            protocol.connectionClosed();
         }
     }
 
@@ -58,9 +71,15 @@ public class ConnectionHandlerImpl<T> implements ConnectionHandler<T>, Runnable
                 // 1. המרה מאובייקט לבתים
                 byte[] encodedMsg = encdec.encode(msg);
                 // 2. כתיבה ל-Socket
-                out.write(encodedMsg);
-                // 3. שליחה מיידית (חשוב מאוד!)
-                out.flush();
+                writeLock.lock();
+                try {
+                    out.write(encodedMsg);
+                    // 3. שליחה מיידית (חשוב מאוד!)
+                    out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+                lastWriteTime = System.currentTimeMillis();
             } catch (IOException e) {
                 e.printStackTrace();
                 // אם השליחה נכשלה, כנראה החיבור מת
@@ -78,4 +97,51 @@ public class ConnectionHandlerImpl<T> implements ConnectionHandler<T>, Runnable
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    // שליחה של הודעה שכבר קודדה (למשל פעם אחת עבור כל המנויים של ערוץ)
+    @Override
+    public void sendEncoded(ByteBuffer... parts) {
+        try {
+            writeLock.lock();
+            try {
+                for (ByteBuffer part : parts) {
+                    writePart(part);
+                }
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+            lastWriteTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    // heart-beat: שורה ריקה אחת
+    @Override
+    public void sendHeartbeat() {
+        sendEncoded(ByteBuffer.wrap(new byte[] { '\n' }));
+    }
+
+    @Override
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    @Override
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    private void writePart(ByteBuffer part) throws IOException {
+        if (part.hasArray()) {
+            out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+            part.position(part.limit());
+        } else {
+            while (part.hasRemaining()) {
+                out.write(part.get());
+            }
+        }
+    }
+}
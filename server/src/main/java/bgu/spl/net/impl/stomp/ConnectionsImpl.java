@@ -1,18 +1,91 @@
 package bgu.spl.net.impl.stomp;
 
-import java.util.Map;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import bgu.spl.net.impl.log.DestinationLog;
+import bgu.spl.net.impl.log.MessageLog;
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.TimerWheel;
+import bgu.spl.net.srv.metrics.Histogram;
+import bgu.spl.net.srv.metrics.Metrics;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
+    // A connection that did not complete a CONNECT within this time is closed
+    private static final long CONNECT_TIMEOUT_MILLIS = Long.getLong("stomp.connect.timeout.millis", 30_000);
+    // A connected client that sends no heart-beats is closed after this long without sending anything, 0 = never
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("stomp.idle.timeout.millis", 0);
+    // A client that promised heart-beats is dead after this many of its heart-beat intervals without a byte
+    private static final int HEARTBEAT_GRACE = 2;
+    // A destination without subscribers that nothing was sent to for this long is dropped, 0 = never
+    private static final long DESTINATION_IDLE_MILLIS = Long.getLong("stomp.destination.idle.millis", 60_000);
+    // A replay sends this many bytes of the log at a time, and checks on the subscriber's write queue in between
+    private static final int REPLAY_PIECE_BYTES = 64 * 1024;
+    // A replay this close to the last message of the channel sends the rest at once and goes live
+    private static final int REPLAY_LIVE_RECORDS = 64;
+    // How long a replay waits for a backed up subscriber before it checks again
+    private static final long REPLAY_PAUSE_MILLIS = 10;
+
+    // subscribers reached by one message, of all the destinations (and per destination in the Destination)
+    private static final Histogram FANOUT = Metrics.getInstance().histogram("destination.fanout");
+    // the whole send of a message: logging it and writing or queueing it for every subscriber
+    private static final Histogram SEND_LATENCY = Metrics.getInstance().latency("destination.send.nanos");
+    private static final Histogram LOG_LATENCY = Metrics.getInstance().latency("destination.log.append.nanos");
+
     private final ConcurrentHashMap<Integer, ConnectionHandler<T>> activeConnections;
-    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Integer>> channelSubscribers;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Subscriber>> channelSubscribers;
+    // subscriptions to destination patterns ('*' and '#' segments), matched against every destination sent to
+    private final SubscriptionTrie<Subscriber> patternSubscribers;
+    // reverse index: the channels every connection is subscribed to, so a disconnect never scans all the channels
+    private final ConcurrentHashMap<Integer, Set<String>> connectionChannels;
+    // the destinations in use, with their sequence numbers - also when they have no subscribers, until they are idle
+    private final ConcurrentHashMap<String, Destination> destinations;
+    // the last sequence number of every evicted channel that is not logged - a logged one continues from its log
+    private final ConcurrentHashMap<String, Long> evictedSequences;
+    // where the messages of every destination are kept for replay, null if they are not kept
+    private final MessageLog messageLog;
+    // the heart-beats and timeouts of every connection, run by the timer of the server (null: no timeouts)
+    private final TimerWheel timer;
+    private final ConcurrentHashMap<Integer, Liveness> liveness;
+    private final AtomicLong reapedConnections = new AtomicLong();
 
     public ConnectionsImpl() {
+        this(MessageLog.fromSystemProperties(), null);
+    }
+
+    public ConnectionsImpl(TimerWheel timer) {
+        this(MessageLog.fromSystemProperties(), timer);
+    }
+
+    public ConnectionsImpl(MessageLog messageLog, TimerWheel timer) {
+        this.timer = timer;
+        this.liveness = new ConcurrentHashMap<>();
         this.activeConnections = new ConcurrentHashMap<>();
         this.channelSubscribers = new ConcurrentHashMap<>();
+        this.patternSubscribers = new SubscriptionTrie<>();
+        this.connectionChannels = new ConcurrentHashMap<>();
+        this.destinations = new ConcurrentHashMap<>();
+        this.evictedSequences = new ConcurrentHashMap<>();
+        this.messageLog = messageLog;
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("connections.active", activeConnections::size);
+        metrics.gauge("connections.reaped", reapedConnections::get);
+        metrics.gauge("destinations", destinations::size);
+
+        if (timer != null && DESTINATION_IDLE_MILLIS > 0) {
+            timer.schedule(this::evictIdleDestinations, DESTINATION_IDLE_MILLIS);
+        }
     }
 
     @Override
@@ -23,66 +96,519 @@ public class ConnectionsImpl<T> implements Connections<T> {
         }
         try {
             handler.send(msg);
+            if (msg instanceof StompFrame && ((StompFrame) msg).getCommand() != null) {
+                ((StompFrame) msg).getCommand().sent().increment();
+            }
             return true;
         } catch (Exception e) {
             return false;
         }
     }
 
+    /**
+     * Sends a MESSAGE to all the subscribers of the channel, stamped with the next sequence number of the channel,
+     * and appends it to the log of the channel.
+     * Numbering, logging and fan-out of a channel happen under its lock, so every subscriber receives the messages
+     * of a channel in sequence order and a gap means a message was lost. The writes do not block, the connection
+     * handlers queue them - for the selector threads in the reactor servers, for a writer task in the thread per
+     * client ones.
+     */
     @Override
     public void send(String channel, T msg) {
-        ConcurrentHashMap<Integer, Integer> subscribers = channelSubscribers.get(channel);
-
-        if (subscribers != null) {
-            for (Map.Entry<Integer, Integer> entry : subscribers.entrySet()) {
-                Integer connectionId = entry.getKey();
-                Integer subscriptionId = entry.getValue();
-
-                String messageAsString = (String) msg;
-                String finalFrame;
-
-                // Find the separation between headers and body
-                int bodySeparator = messageAsString.indexOf("\n\n");
-
-                if (bodySeparator != -1) {
-                    // Inject the subscription header before the blank line
-                    finalFrame = messageAsString.substring(0, bodySeparator) + 
-                                 "\nsubscription:" + subscriptionId + 
-                                 messageAsString.substring(bodySeparator) + 
-                                 "\u0000";
-                } else {
-                    // Case where there is no body yet, just headers
-                    finalFrame = messageAsString + 
-                                 "\nsubscription:" + subscriptionId + 
-                                 "\n\n\u0000";
+        StompFrame frame = (StompFrame) msg;
+        long start = System.nanoTime();
+        Destination destination = lockDestination(channel);
+        try {
+            long sequence = ++destination.lastSequence;
+            frame.addHeader(StompFrame.MESSAGE_SEQ, Long.toString(sequence));
+
+            ConcurrentHashMap<Integer, Subscriber> subscribers = channelSubscribers.get(channel);
+            List<Subscriber> matching = patternSubscribers.match(channel);
+            int fanout = (subscribers == null ? 0 : subscribers.size()) + matching.size();
+            FANOUT.record(fanout);
+            destination.fanout.record(fanout);
+            boolean noSubscribers = fanout == 0;
+            if (noSubscribers && destination.log == null) {
+                return;
+            }
+
+            // Encode the frame once for the log and all the subscribers. It is cut where the subscription header
+            // goes: head = command + headers, tail = blank line + body + '\u0000'
+            ByteBuffer headBytes = ByteBuffer.wrap(frame.encodeHead());
+            ByteBuffer tailBytes = ByteBuffer.wrap(frame.encodeTail());
+
+            if (destination.log != null) {
+                try {
+                    long appendStart = System.nanoTime();
+                    destination.log.append(sequence, System.currentTimeMillis(), headBytes, tailBytes);
+                    LOG_LATENCY.recordSince(appendStart);
+                } catch (IOException e) {
+                    System.err.println("Message log of " + channel + " failed, no longer logging it: " + e);
+                    destination.log = null;
                 }
+            }
+            if (noSubscribers) {
+                return;
+            }
 
-                send(connectionId, (T) finalFrame);
+            if (subscribers != null) {
+                for (Subscriber subscriber : subscribers.values()) {
+                    deliver(subscriber, headBytes, tailBytes);
+                }
             }
+            // a connection subscribed both to the channel and to a pattern gets the message once per subscription
+            for (Subscriber subscriber : matching) {
+                deliver(subscriber, headBytes, tailBytes);
+            }
+            frame.getCommand().sent().add(fanout);
+        } finally {
+            destination.lock.unlock();
+        }
+        SEND_LATENCY.recordSince(start);
+    }
+
+    private void deliver(Subscriber subscriber, ByteBuffer headBytes, ByteBuffer tailBytes) {
+        ConnectionHandler<T> handler = activeConnections.get(subscriber.connectionId);
+        if (handler == null) {
+            return;
+        }
+        try {
+            handler.sendEncoded(headBytes.duplicate(), subscriber.headerFragment(), tailBytes.duplicate());
+        } catch (Exception e) {
+            // a failing subscriber must not stop the fan-out to the others
+        }
+    }
+
+    /**
+     * @return the sequence number of the last message sent to the channel, 0 if none was sent
+     */
+    public long getLastSequence(String channel) {
+        Destination destination = destinations.get(channel);
+        if (destination == null) {
+            return 0;
+        }
+        destination.lock.lock();
+        try {
+            return destination.lastSequence;
+        } finally {
+            destination.lock.unlock();
         }
     }
 
     @Override
     public void disconnect(int connectionId) {
         activeConnections.remove(connectionId);
-        
-        for (ConcurrentHashMap<Integer, Integer> subscribers : channelSubscribers.values()) {
-            subscribers.remove(connectionId);
+        unsubscribeAll(connectionId);
+        Liveness removed = liveness.remove(connectionId);
+        if (removed != null) {
+            removed.cancel();
         }
     }
-    
+
     public void addConnection(int connectionId, ConnectionHandler<T> handler) {
         activeConnections.put(connectionId, handler);
+        if (timer != null) {
+            Liveness check = new Liveness(connectionId);
+            liveness.put(connectionId, check);
+            check.schedule(CONNECT_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Called when the client of a connection completed its CONNECT, with the negotiated heart-beats.
+     * From now on the server sends a heart-beat whenever it sent nothing for {@code sendEveryMillis}, and closes
+     * the connection when nothing arrived from the client for {@link #HEARTBEAT_GRACE} times
+     * {@code expectEveryMillis} (or, if the client sends no heart-beats, for the idle timeout, if there is one).
+     * A closed connection is cleaned up by its protocol (see {@link bgu.spl.net.api.MessagingProtocol#connectionClosed()}).
+     * @param sendEveryMillis   0 if the client wants no heart-beats
+     * @param expectEveryMillis 0 if the client sends none
+     */
+    public void connected(int connectionId, long sendEveryMillis, long expectEveryMillis) {
+        Liveness check = liveness.get(connectionId);
+        if (check == null) {
+            return; // no timer, or already disconnected
+        }
+        // set before the state, which publishes them to the timer thread
+        check.sendEveryMillis = sendEveryMillis;
+        check.deadAfterMillis = expectEveryMillis > 0 ? expectEveryMillis * HEARTBEAT_GRACE : IDLE_TIMEOUT_MILLIS;
+        if (!check.state.compareAndSet(Liveness.WAITING, Liveness.CONNECTED)) {
+            return; // the CONNECT timeout reaped the connection first
+        }
+        if (check.cancel()) {
+            check.scheduleNext();
+        } // otherwise the CONNECT timeout is running, finds the connection connected and schedules the next check
+    }
+
+    /**
+     * @return how many connections were closed because they did not CONNECT in time or went silent
+     */
+    public long getReapedConnections() {
+        return reapedConnections.get();
     }
 
+    /**
+     * Subscribes to a channel, or to every channel that matches a pattern (see {@link SubscriptionTrie}).
+     */
     public void subscribe(String channel, int connectionId, int subscriptionId) {
-        channelSubscribers.computeIfAbsent(channel, k -> new ConcurrentHashMap<>())
-                          .put(connectionId, subscriptionId);
+        addSubscriber(channel, connectionId, subscriptionId);
+    }
+
+    /**
+     * @return true if the destination of a SUBSCRIBE is a pattern and not a single channel
+     */
+    public static boolean isPattern(String destination) {
+        return SubscriptionTrie.isPattern(destination);
+    }
+
+    /**
+     * @return why the pattern can not be subscribed to, or null if it can
+     */
+    public static String validatePattern(String pattern) {
+        return SubscriptionTrie.validate(pattern);
+    }
+
+    /**
+     * Subscribes and first sends the logged messages of the channel with a sequence number of at least
+     * {@code fromSequence} that were sent at or after {@code fromTimestamp} (epoch millis).
+     * The log is replayed in pieces of about {@link #REPLAY_PIECE_BYTES}, each under the lock of the channel, and
+     * the connection is only sent the next piece while its write queue is not backed up - the publishers of the
+     * channel wait for one piece at most and the replay never overflows the queue. Once no more than
+     * {@link #REPLAY_LIVE_RECORDS} messages are left, they are replayed and the subscription is added under the
+     * same lock, so the replay continues into the live messages without a gap or a duplicate.
+     * @param serial runs the pieces of the replay, in turn with the rest of the connection's work
+     * @return completes when the subscription is live, or the connection went away during the replay
+     */
+    public CompletableFuture<Void> subscribe(String channel, int connectionId, int subscriptionId,
+            long fromSequence, long fromTimestamp, Executor serial) {
+        Replay replay = new Replay(channel, connectionId, new Subscriber(connectionId, subscriptionId), fromSequence,
+                fromTimestamp, serial);
+        replay.run();
+        return replay.done;
+    }
+
+    private void addSubscriber(String channel, int connectionId, int subscriptionId) {
+        addSubscriber(channel, connectionId, new Subscriber(connectionId, subscriptionId));
     }
-    
+
+    private void addSubscriber(String channel, int connectionId, Subscriber subscriber) {
+        connectionChannels.computeIfAbsent(connectionId, id -> ConcurrentHashMap.newKeySet()).add(channel);
+        if (SubscriptionTrie.isPattern(channel)) {
+            patternSubscribers.add(channel, connectionId, subscriber);
+            return;
+        }
+        // compute() runs atomically with removeSubscriber(), so a channel map that is being reclaimed
+        // is never written to
+        channelSubscribers.compute(channel, (name, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = new ConcurrentHashMap<>();
+            }
+            subscribers.put(connectionId, subscriber);
+            return subscribers;
+        });
+    }
+
+    private Destination destination(String channel) {
+        return destinations.computeIfAbsent(channel, name -> {
+            DestinationLog log = null;
+            if (messageLog != null && messageLog.isLogged(name)) {
+                try {
+                    log = messageLog.open(name);
+                } catch (IOException e) {
+                    System.err.println("Message log of " + name + " could not be opened, not logging it: " + e);
+                }
+            }
+            Long evicted = evictedSequences.remove(name);
+            return new Destination(name, log, evicted == null ? 0 : evicted);
+        });
+    }
+
+    /**
+     * @return the destination of the channel, locked by the caller and marked as used
+     */
+    private Destination lockDestination(String channel) {
+        while (true) {
+            Destination destination = destination(channel);
+            destination.lock.lock();
+            if (!destination.removed) {
+                destination.lastUsedMillis = System.currentTimeMillis();
+                return destination;
+            }
+            // evicted meanwhile, the next lookup creates it again
+            destination.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the destinations that have no subscribers and were not used for {@link #DESTINATION_IDLE_MILLIS}:
+     * their fan-out histogram and their open message log go with them. The last sequence number of a channel that
+     * is not logged is kept in {@link #evictedSequences}, so its numbering continues when it is used again - a
+     * client that subscribed to it before never sees message-seq go back.
+     * Runs on the timer thread, so a destination that is locked is left for the next round.
+     */
+    private void evictIdleDestinations() {
+        long now = System.currentTimeMillis();
+        for (Destination destination : destinations.values()) {
+            if (now - destination.lastUsedMillis < DESTINATION_IDLE_MILLIS || !destination.lock.tryLock()) {
+                continue;
+            }
+            try {
+                String name = destination.name;
+                if (channelSubscribers.containsKey(name) || !patternSubscribers.match(name).isEmpty()) {
+                    continue;
+                }
+                // the metric goes before the map entry, so a new Destination of the name registers it again
+                destination.removed = true;
+                if (destination.log == null && destination.lastSequence > 0) {
+                    evictedSequences.put(name, destination.lastSequence);
+                }
+                Metrics.getInstance().remove("destination.fanout", name);
+                destinations.remove(name, destination);
+                if (destination.log != null) {
+                    destination.log.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Message log of " + destination.name + " could not be closed: " + e);
+            } finally {
+                destination.lock.unlock();
+            }
+        }
+        timer.schedule(this::evictIdleDestinations, DESTINATION_IDLE_MILLIS);
+    }
+
     public void unsubscribe(String channel, int connectionId) {
-         if (channelSubscribers.containsKey(channel)) {
-             channelSubscribers.get(channel).remove(connectionId);
-         }
+        Set<String> channels = connectionChannels.get(connectionId);
+        if (channels != null) {
+            channels.remove(channel);
+        }
+        removeSubscriber(channel, connectionId);
+    }
+
+    /**
+     * Removes all the subscriptions of a connection, in time proportional to the number of its subscriptions.
+     */
+    public void unsubscribeAll(int connectionId) {
+        Set<String> channels = connectionChannels.remove(connectionId);
+        if (channels == null) {
+            return;
+        }
+        for (String channel : channels) {
+            removeSubscriber(channel, connectionId);
+        }
+    }
+
+    private void removeSubscriber(String channel, int connectionId) {
+        if (SubscriptionTrie.isPattern(channel)) {
+            patternSubscribers.remove(channel, connectionId);
+            return;
+        }
+        // a channel left without subscribers is dropped from the map instead of being kept forever
+        channelSubscribers.computeIfPresent(channel, (name, subscribers) -> {
+            subscribers.remove(connectionId);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    /**
+     * The timer of one connection: first the CONNECT timeout, then its heart-beats and idle checks.
+     * Runs on the timer thread, so it only looks at the times of the last read and write and either sends a
+     * heart-beat (a write that never blocks in the reactor servers) or closes the connection.
+     */
+    private final class Liveness implements Runnable {
+        static final int WAITING = 0; // for the CONNECT
+        static final int CONNECTED = 1;
+        static final int REAPED = 2; // the CONNECT did not come in time
+
+        final int connectionId;
+        // the CONNECT timeout and connected() race for it, exactly one of them moves it out of WAITING
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        volatile long sendEveryMillis = 0;
+        volatile long deadAfterMillis = 0;
+        private volatile TimerWheel.Timeout timeout;
+
+        Liveness(int connectionId) {
+            this.connectionId = connectionId;
+        }
+
+        @Override
+        public void run() {
+            ConnectionHandler<T> handler = activeConnections.get(connectionId);
+            if (handler == null || liveness.get(connectionId) != this) {
+                return;
+            }
+            if (state.get() == WAITING && state.compareAndSet(WAITING, REAPED)) {
+                reap(handler);
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (deadAfterMillis > 0 && now - handler.getLastReadTime() >= deadAfterMillis) {
+                reap(handler);
+                return;
+            }
+            if (sendEveryMillis > 0 && now - handler.getLastWriteTime() >= sendEveryMillis) {
+                handler.sendHeartbeat();
+            }
+            scheduleNext();
+        }
+
+        void scheduleNext() {
+            long next = Long.MAX_VALUE;
+            if (sendEveryMillis > 0) {
+                next = sendEveryMillis;
+            }
+            if (deadAfterMillis > 0) {
+                // checked twice per period, so a dead connection is found at most half a period late
+                next = Math.min(next, Math.max(1, deadAfterMillis / 2));
+            }
+            if (next != Long.MAX_VALUE) {
+                schedule(next);
+            }
+        }
+
+        void schedule(long delayMillis) {
+            timeout = timer.schedule(this, delayMillis);
+        }
+
+        /**
+         * @return true if the scheduled check was cancelled before it ran
+         */
+        boolean cancel() {
+            TimerWheel.Timeout current = timeout;
+            return current != null && current.cancel();
+        }
+
+        private void reap(ConnectionHandler<T> handler) {
+            reapedConnections.incrementAndGet();
+            try {
+                handler.close(); // the protocol of the connection cleans up
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * The state of a channel that outlives its subscribers, until it is idle. Guarded by its own lock.
+     */
+    private static final class Destination {
+        // held while numbering, logging and fanning out a message - a ReentrantLock and not a monitor, the
+        // thread holding it may block (on the message log, or on a socket with a handler that writes directly),
+        // and a virtual thread blocking inside a monitor pins its carrier thread
+        final ReentrantLock lock = new ReentrantLock();
+        final String name;
+        DestinationLog log; // null if the channel is not logged
+        long lastSequence;
+        boolean removed; // evicted, the channel has a new Destination
+        volatile long lastUsedMillis = System.currentTimeMillis();
+        final Histogram fanout;
+
+        /**
+         * @param lastSequence the last sequence number of the channel before it was evicted, 0 if it was not
+         */
+        Destination(String name, DestinationLog log, long lastSequence) {
+            this.name = name;
+            this.log = log;
+            this.fanout = Metrics.getInstance().histogram("destination.fanout", name);
+            // the numbering continues where the previous run, or the evicted Destination, stopped
+            this.lastSequence = Math.max(lastSequence, log == null ? 0 : log.getLastSequence());
+        }
+    }
+
+    /**
+     * A replay of the log of a channel to a new subscriber, one piece per {@link #run()}. A subscriber that is backed
+     * up gets the next piece from the timer, through the executor of its connection (without a timer, at once).
+     */
+    private final class Replay implements Runnable {
+        final String channel;
+        final int connectionId;
+        final Subscriber subscriber;
+        final long fromTimestamp;
+        final Executor serial;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final ConnectionHandler<T> handler;
+        long nextSequence;
+        long pieceBytes;
+
+        Replay(String channel, int connectionId, Subscriber subscriber, long fromSequence, long fromTimestamp,
+                Executor serial) {
+            this.channel = channel;
+            this.connectionId = connectionId;
+            this.subscriber = subscriber;
+            this.nextSequence = fromSequence;
+            this.fromTimestamp = fromTimestamp;
+            this.serial = serial;
+            this.handler = activeConnections.get(connectionId);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (handler == null || activeConnections.get(connectionId) == handler) {
+                    if (handler != null && timer != null && handler.isBackedUp()) {
+                        timer.schedule(() -> serial.execute(this), REPLAY_PAUSE_MILLIS);
+                        return;
+                    }
+                    if (replayPiece()) {
+                        done.complete(null);
+                        return;
+                    }
+                }
+                done.complete(null); // disconnected, there is nobody to subscribe
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * @return true if the subscription is live
+         */
+        private boolean replayPiece() {
+            Destination destination = lockDestination(channel);
+            try {
+                if (handler == null || destination.log == null) {
+                    addSubscriber(channel, connectionId, subscriber);
+                    return true;
+                }
+                // the last few messages go out under this lock with the subscription, whatever their size
+                boolean lastPiece = destination.lastSequence - nextSequence < REPLAY_LIVE_RECORDS;
+                pieceBytes = 0;
+                boolean complete = destination.log.replay(nextSequence, fromTimestamp,
+                        (sequence, timestamp, head, tail) -> {
+                            if (!lastPiece && pieceBytes >= REPLAY_PIECE_BYTES) {
+                                return false;
+                            }
+                            pieceBytes += head.remaining() + tail.remaining();
+                            nextSequence = sequence + 1;
+                            handler.sendEncoded(head, subscriber.headerFragment(), tail);
+                            return true;
+                        });
+                if (!complete) {
+                    return false;
+                }
+                if (activeConnections.get(connectionId) == handler) {
+                    addSubscriber(channel, connectionId, subscriber);
+                }
+                return true;
+            } finally {
+                destination.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A subscription of one connection to a channel, together with its encoded
+     * "subscription:&lt;id&gt;\n" header line so the fan-out never re-encodes it.
+     */
+    private static final class Subscriber {
+        final int connectionId;
+        final byte[] header;
+
+        Subscriber(int connectionId, int subscriptionId) {
+            this.connectionId = connectionId;
+            this.header = (StompFrame.SUBSCRIPTION + ":" + subscriptionId + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        ByteBuffer headerFragment() {
+            return ByteBuffer.wrap(header);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,69 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Metrics;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The commands of STOMP 1.2, client frames first and then server frames.
+ */
+public enum StompCommand {
+    CONNECT,
+    STOMP,
+    SEND,
+    SUBSCRIBE,
+    UNSUBSCRIBE,
+    ACK,
+    NACK,
+    BEGIN,
+    COMMIT,
+    ABORT,
+    DISCONNECT,
+    CONNECTED,
+    MESSAGE,
+    RECEIPT,
+    ERROR;
+
+    private static final StompCommand[] VALUES = values();
+
+    // frames of the command received and sent by the server, see Metrics. Created on first use, so the server
+    // frames are never listed as received nor the client frames as sent
+    private volatile Counter received;
+    private volatile Counter sent;
+
+    // the command line as it appears on the wire, so parsing never creates a String
+    private final byte[] wire = name().getBytes(StandardCharsets.US_ASCII);
+
+    /*package*/ byte[] wire() {
+        return wire;
+    }
+
+    /*package*/ Counter received() {
+        Counter counter = received;
+        if (counter == null) {
+            received = counter = Metrics.getInstance().counter("frames.in." + name()); // the same one on a race
+        }
+        return counter;
+    }
+
+    /*package*/ Counter sent() {
+        Counter counter = sent;
+        if (counter == null) {
+            sent = counter = Metrics.getInstance().counter("frames.out." + name());
+        }
+        return counter;
+    }
+
+    /**
+     * @return the command spelled by {@code length} bytes of {@code bytes} starting at {@code offset},
+     * or null if they do not spell a known command
+     */
+    public static StompCommand parse(byte[] bytes, int offset, int length) {
+        for (StompCommand command : VALUES) {
+            if (StompFrame.sameBytes(command.wire, bytes, offset, length)) {
+                return command;
+            }
+        }
+        return null;
+    }
+}
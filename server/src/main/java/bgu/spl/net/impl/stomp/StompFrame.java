@@ -0,0 +1,272 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One STOMP frame: a command, its headers and a body.
+ * <p>
+ * The headers are kept in a single array of alternating names and values, which for the handful of headers a
+ * frame carries is both smaller and faster to search than a map. Names of the standard headers are always the
+ * constants below (the decoder never creates a new String for them), so they can be compared by reference.
+ * The body is kept as the bytes that arrived on the wire and is only turned into a String when
+ * {@link #getBodyAsString()} is called - forwarding a SEND body to the subscribers never copies it.
+ * <p>
+ * A frame is not thread safe, but once built it is only read, so one frame may be sent to many connections.
+ */
+public class StompFrame {
+
+    public static final String ACCEPT_VERSION = "accept-version";
+    public static final String HOST = "host";
+    public static final String LOGIN = "login";
+    public static final String PASSCODE = "passcode";
+    public static final String HEART_BEAT = "heart-beat";
+    public static final String VERSION = "version";
+    public static final String SESSION = "session";
+    public static final String SERVER = "server";
+    public static final String DESTINATION = "destination";
+    public static final String ID = "id";
+    public static final String ACK = "ack";
+    public static final String TRANSACTION = "transaction";
+    public static final String RECEIPT = "receipt";
+    public static final String RECEIPT_ID = "receipt-id";
+    public static final String MESSAGE_ID = "message-id";
+    public static final String SUBSCRIPTION = "subscription";
+    public static final String MESSAGE = "message";
+    public static final String CONTENT_TYPE = "content-type";
+    public static final String CONTENT_LENGTH = "content-length";
+    // not part of STOMP: sent by our client with every game event, used to track the reported files
+    public static final String FILE_NAME = "file-name";
+    // not part of STOMP: the position of a MESSAGE among the messages sent to its destination, 1, 2, 3...
+    public static final String MESSAGE_SEQ = "message-seq";
+    // not part of STOMP: on SUBSCRIBE, the logged messages of the destination to send before the live ones -
+    // "all", "seq:<first message-seq>" or "time:<epoch millis>"
+    public static final String REPLAY = "replay";
+
+    private static final String[] KNOWN_HEADERS = {
+            DESTINATION, RECEIPT, ID, FILE_NAME, LOGIN, PASSCODE, ACCEPT_VERSION, HOST, HEART_BEAT, ACK,
+            TRANSACTION, CONTENT_TYPE, CONTENT_LENGTH, VERSION, SESSION, SERVER, RECEIPT_ID, MESSAGE_ID,
+            SUBSCRIPTION, MESSAGE, REPLAY
+    };
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final StompCommand command;
+    private String[] headers; // name, value, name, value...
+    private int headerCount = 0;
+    private byte[] body = NO_BODY;
+    private int bodyOffset = 0;
+    private int bodyLength = 0;
+
+    public StompFrame(StompCommand command) {
+        this(command, 2);
+    }
+
+    /**
+     * @param expectedHeaders how many headers the frame will probably have, the storage grows if there are more
+     */
+    public StompFrame(StompCommand command, int expectedHeaders) {
+        this.command = command;
+        this.headers = new String[Math.max(1, expectedHeaders) * 2];
+    }
+
+    /**
+     * @return the command of the frame, or null if the frame arrived with a command this server does not know
+     */
+    public StompCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * Adds a header. A frame may repeat a header, in that case only the first one counts (as STOMP 1.2 requires).
+     * @return this frame, so outgoing frames can be built in one expression
+     */
+    public StompFrame addHeader(String name, String value) {
+        if (headerCount * 2 == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        headers[headerCount * 2] = name;
+        headers[headerCount * 2 + 1] = value;
+        headerCount++;
+        return this;
+    }
+
+    /**
+     * @return the value of the first header with this name, or null if there is none
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < headerCount * 2; i += 2) {
+            if (headers[i] == name) {
+                return headers[i + 1];
+            }
+        }
+        // a name that is not one of the constants above, or a name given by a caller that did not use them
+        for (int i = 0; i < headerCount * 2; i += 2) {
+            if (headers[i].equals(name)) {
+                return headers[i + 1];
+            }
+        }
+        return null;
+    }
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    /**
+     * Uses {@code length} bytes of {@code bytes} starting at {@code offset} as the body, without copying them.
+     * The caller must not change these bytes afterwards.
+     * @return this frame
+     */
+    public StompFrame setBody(byte[] bytes, int offset, int length) {
+        this.body = bytes;
+        this.bodyOffset = offset;
+        this.bodyLength = length;
+        return this;
+    }
+
+    /**
+     * @return this frame
+     */
+    public StompFrame setBody(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return setBody(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Uses the body of another frame as the body of this one, without copying it.
+     * @return this frame
+     */
+    public StompFrame setBody(StompFrame other) {
+        return setBody(other.body, other.bodyOffset, other.bodyLength);
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Decodes the body. Every call creates a new String, so callers that need it more than once should keep it.
+     */
+    public String getBodyAsString() {
+        return new String(body, bodyOffset, bodyLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the whole frame as it goes on the wire, including the terminating '\u0000'
+     */
+    public byte[] encode() {
+        int headLength = headLength();
+        byte[] encoded = new byte[headLength + bodyLength + 2];
+        writeHead(encoded);
+        writeTail(encoded, headLength);
+        return encoded;
+    }
+
+    /**
+     * @return the command line and the header lines, each ending with '\n'. Together with {@link #encodeTail()}
+     * this is the whole frame, so more header lines may be put between the two without re-encoding the frame.
+     */
+    public byte[] encodeHead() {
+        byte[] head = new byte[headLength()];
+        writeHead(head);
+        return head;
+    }
+
+    /**
+     * @return the empty line ending the headers, the body and the terminating '\u0000'
+     */
+    public byte[] encodeTail() {
+        byte[] tail = new byte[bodyLength + 2];
+        writeTail(tail, 0);
+        return tail;
+    }
+
+    @Override
+    public String toString() {
+        return new String(encode(), 0, headLength() + bodyLength + 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the standard header name spelled by the given bytes, or a new String if it is not a standard one
+     */
+    /*package*/ static String headerName(byte[] bytes, int offset, int length) {
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            if (sameBytes(KNOWN_HEADER_BYTES[i], bytes, offset, length)) {
+                return KNOWN_HEADERS[i];
+            }
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /*package*/ static boolean sameBytes(byte[] expected, byte[] bytes, int offset, int length) {
+        if (expected.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (expected[i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int headLength() {
+        int length = command.wire().length + 1;
+        for (int i = 0; i < headerCount * 2; i += 2) {
+            length += utf8Length(headers[i]) + 1 + utf8Length(headers[i + 1]) + 1;
+        }
+        return length;
+    }
+
+    private void writeHead(byte[] dst) {
+        byte[] commandBytes = command.wire();
+        System.arraycopy(commandBytes, 0, dst, 0, commandBytes.length);
+        int pos = commandBytes.length;
+        dst[pos++] = '\n';
+        for (int i = 0; i < headerCount * 2; i += 2) {
+            pos = putUtf8(dst, pos, headers[i]);
+            dst[pos++] = ':';
+            pos = putUtf8(dst, pos, headers[i + 1]);
+            dst[pos++] = '\n';
+        }
+    }
+
+    private void writeTail(byte[] dst, int pos) {
+        dst[pos++] = '\n';
+        System.arraycopy(body, bodyOffset, dst, pos, bodyLength);
+        dst[pos + bodyLength] = '\u0000';
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int utf8Length(String s) {
+        return isAscii(s) ? s.length() : s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int putUtf8(byte[] dst, int pos, String s) {
+        if (isAscii(s)) {
+            for (int i = 0; i < s.length(); i++) {
+                dst[pos++] = (byte) s.charAt(i);
+            }
+            return pos;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, dst, pos, bytes.length);
+        return pos + bytes.length;
+    }
+}
@@ -1,19 +1,26 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
-public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String> {
+public class StompMessageEncoderDecoder implements MessageEncoderDecoder<StompFrame> {
 
     private byte[] bytes = new byte[1024];
     private int len = 0;
 
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public StompFrame decodeNextByte(byte nextByte) {
         // In STOMP, the null character '\u0000' indicates the end of the frame
         if (nextByte == '\u0000') {
-            return popString();
+            return popFrame();
+        }
+        if (len == 0 && isEol(nextByte)) {
+            return null; // a heart-beat, or the optional EOLs after a frame
         }
 
         pushByte(nextByte);
@@ -21,9 +28,119 @@ public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String>
     }
 
     @Override
-    public byte[] encode(String message) {
-        // Encodes the string to bytes and ensures it ends with the null character
-        return (message + "\u0000").getBytes(StandardCharsets.UTF_8);
+    public List<StompFrame> decode(ByteBuffer buffer) {
+        List<StompFrame> frames = null;
+        while (buffer.hasRemaining()) {
+            if (len == 0 && isEol(buffer.get(buffer.position()))) {
+                buffer.get(); // a heart-beat, or the optional EOLs after a frame
+                continue;
+            }
+            int start = buffer.position();
+            int end = indexOfNul(buffer, start, buffer.limit());
+            if (end < 0) {
+                // The frame continues in the next read, keep what we have so far
+                pushBytes(buffer, buffer.remaining());
+                break;
+            }
+
+            StompFrame frame;
+            if (len == 0 && buffer.hasArray()) {
+                // The whole frame is inside the buffer - parse it in place without copying
+                frame = parse(buffer.array(), buffer.arrayOffset() + start, end - start);
+                buffer.position(end + 1);
+            } else {
+                pushBytes(buffer, end - start);
+                buffer.get(); // skip the '\u0000'
+                frame = popFrame();
+            }
+
+            if (frames == null) {
+                frames = new ArrayList<>();
+            }
+            frames.add(frame);
+        }
+        return frames == null ? Collections.emptyList() : frames;
+    }
+
+    @Override
+    public byte[] encode(StompFrame message) {
+        // The encoded frame already ends with the null character
+        return message.encode();
+    }
+
+    private static boolean isEol(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     * Parses one frame (without its '\u0000'). The body is the only part that is copied as is, since the bytes
+     * are reused for the next read, and it stays bytes until someone asks for it as a String.
+     */
+    private static StompFrame parse(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int lineEnd = indexOfNewLine(bytes, offset, end);
+        StompFrame frame = new StompFrame(StompCommand.parse(bytes, offset, trimCr(bytes, offset, lineEnd) - offset));
+
+        // Headers: one "name:value" per line, until an empty line
+        int pos = lineEnd + 1;
+        while (pos < end) {
+            lineEnd = indexOfNewLine(bytes, pos, end);
+            int contentEnd = trimCr(bytes, pos, lineEnd);
+            if (contentEnd == pos) {
+                pos = lineEnd + 1; // the empty line - the body starts right after it
+                break;
+            }
+            int colon = indexOf(bytes, (byte) ':', pos, contentEnd);
+            if (colon != -1) {
+                frame.addHeader(
+                        StompFrame.headerName(bytes, pos, colon - pos),
+                        new String(bytes, colon + 1, contentEnd - colon - 1, StandardCharsets.UTF_8));
+            }
+            pos = lineEnd + 1;
+        }
+
+        if (pos < end) {
+            frame.setBody(Arrays.copyOfRange(bytes, pos, end), 0, end - pos);
+        }
+        return frame;
+    }
+
+    private static int indexOfNewLine(byte[] bytes, int from, int to) {
+        int index = indexOf(bytes, (byte) '\n', from, to);
+        return index == -1 ? to : index;
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // STOMP 1.2 allows "\r\n" as the end of line
+    private static int trimCr(byte[] bytes, int from, int lineEnd) {
+        return lineEnd > from && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private static int indexOfNul(ByteBuffer buffer, int from, int to) {
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = from; i < to; i++) {
+                if (array[offset + i] == '\u0000') {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == '\u0000') {
+                    return i;
+                }
+            }
+        }
+        return -1;
     }
 
     private void pushByte(byte nextByte) {
@@ -33,9 +150,17 @@ public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String>
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    private void pushBytes(ByteBuffer buffer, int count) {
+        if (len + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(len + count, bytes.length * 2));
+        }
+        buffer.get(bytes, len, count);
+        len += count;
+    }
+
+    private StompFrame popFrame() {
+        StompFrame result = parse(bytes, 0, len);
         len = 0;
         return result;
     }
-}
\ No newline at end of file
+}
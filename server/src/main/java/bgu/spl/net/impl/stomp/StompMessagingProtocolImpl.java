@@ -2,63 +2,91 @@ package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Metrics;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 // import java.util.concurrent.ConcurrentHashMap;
 
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
 
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
+
+    // Shared by all the connections, so message ids are unique across the server
+    private static final MessageIdGenerator MESSAGE_IDS = new MessageIdGenerator();
+    private static final Counter UNKNOWN_FRAMES = Metrics.getInstance().counter("frames.in.unknown");
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    // The heart-beats the server offers in CONNECTED: it can send one every 10 seconds at the earliest, and wants
+    // one at most every 10 seconds. A client that asks for less often gets less often (STOMP 1.2, Heart-beating)
+    private static final long SERVER_SEND_HEARTBEAT_MILLIS = 10_000;
+    private static final long SERVER_RECEIVE_HEARTBEAT_MILLIS = 10_000;
 
     private int connectionId;
-    private Connections<String> connections;
+    private Connections<StompFrame> connections;
     private boolean shouldTerminate = false;
     private String currentUsername = null;
+    private volatile boolean closed = false;
     
     // Map to track subscriptions for THIS client: SubscriptionID -> ChannelName
     // This helps us when the client sends UNSUBSCRIBE id:X (we need to know which channel X belonged to)
     private Map<String, String> mySubscriptions = new HashMap<>();
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
     }
 
     @Override
-    public String process(String message) {
-        String[] lines = message.split("\n");
-        if (lines.length == 0) return null;
-
-        String command = lines[0];
-        Map<String, String> headers = parseHeaders(lines);
-        String body = parseBody(message);
-
-        if (command.equals("CONNECT")) {
-            handleConnect(headers);
-        } else if (command.equals("SUBSCRIBE")) {
-            handleSubscribe(headers);
-        } else if (command.equals("UNSUBSCRIBE")) {
-            handleUnsubscribe(headers);
-        } else if (command.equals("SEND")) {
-            handleSend(headers, body);
-        } else if (command.equals("DISCONNECT")) {
-            handleDisconnect(headers);
+    public StompFrame process(StompFrame message) {
+        // The decoder already parsed the command and the headers, the body stays as raw bytes
+        StompCommand command = message.getCommand();
+
+        if (command == StompCommand.CONNECT) {
+            handleConnect(message, Runnable::run).toCompletableFuture().join();
+        } else if (command == StompCommand.SUBSCRIBE) {
+            handleSubscribe(message, Runnable::run).toCompletableFuture().join();
+        } else if (command == StompCommand.UNSUBSCRIBE) {
+            handleUnsubscribe(message);
+        } else if (command == StompCommand.SEND) {
+            handleSend(message);
+        } else if (command == StompCommand.DISCONNECT) {
+            handleDisconnect(message);
         } else {
-            sendError(headers, "Unknown Command", "Command not supported");
+            sendError(message, "Unknown Command", "Command not supported");
         }
 
-        // Receipt Handling
-        if (headers.containsKey("receipt")) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + headers.get("receipt") + "\n\n\u0000");
-            if (command.equals("DISCONNECT")) {
-                shouldTerminate = true;
-                connections.disconnect(connectionId);
-            }
-        }
+        return handleReceipt(message);
+    }
 
-        return null;
+    @Override
+    public CompletionStage<StompFrame> processAsync(StompFrame message) {
+        // without an executor the login and a replay continue on the thread that completes them (the SQL pool,
+        // the timer) - only safe when the caller waits for the result before doing anything else with the connection
+        return processAsync(message, Runnable::run);
+    }
+
+    @Override
+    public CompletionStage<StompFrame> processAsync(StompFrame message, Executor serial) {
+        if (message.getCommand() != null) {
+            message.getCommand().received().increment();
+        } else {
+            UNKNOWN_FRAMES.increment();
+        }
+        if (message.getCommand() == StompCommand.CONNECT) {
+            // The login may wait for the SQL server - the connection waits, not the thread
+            return handleConnect(message, serial).thenApply(loggedIn -> handleReceipt(message));
+        }
+        if (message.getCommand() == StompCommand.SUBSCRIBE) {
+            // A replay goes out as fast as the client reads it - the connection waits, not the thread
+            return handleSubscribe(message, serial).thenApply(subscribed -> handleReceipt(message));
+        }
+        return CompletableFuture.completedFuture(process(message));
     }
 
     @Override
@@ -66,88 +94,186 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
+    @Override
+    public void connectionClosed() {
+        // The client may have gone away without a DISCONNECT (or was closed for not heart-beating)
+        closed = true;
+        Database.getInstance().logout(connectionId);
+        connections.disconnect(connectionId);
+    }
+
+    private StompFrame handleReceipt(StompFrame message) {
+        StompCommand command = message.getCommand();
+        String receipt = message.getHeader(StompFrame.RECEIPT);
+        if (receipt != null) {
+            connections.send(connectionId, receiptFrame(receipt));
+            if (command == StompCommand.DISCONNECT) {
+                shouldTerminate = true;
+                connections.disconnect(connectionId);
+            }
+        }
+
+        return null;
+    }
+
     // --- Handlers ---
 
-    private void handleConnect(Map<String, String> headers) {
-        String login = headers.get("login");
-        String passcode = headers.get("passcode");
+    private CompletionStage<Void> handleConnect(StompFrame frame, Executor serial) {
+        String login = frame.getHeader(StompFrame.LOGIN);
+        String passcode = frame.getHeader(StompFrame.PASSCODE);
 
         if (login == null || passcode == null) {
-            sendError(headers, "Malformed Frame", "Missing login or passcode header");
-            return;
+            sendError(frame, "Malformed Frame", "Missing login or passcode header");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String heartBeat = frame.getHeader(StompFrame.HEART_BEAT);
+        long[] clientHeartBeat = heartBeat == null ? new long[] { 0, 0 } : parseHeartBeat(heartBeat);
+        if (clientHeartBeat == null) {
+            sendError(frame, "Malformed Frame", "heart-beat must be <cx>,<cy> in milliseconds");
+            return CompletableFuture.completedFuture(null);
         }
 
         // Delegate the login logic to the Database singleton
-        // This handles checking the password, creating new users, and locking the session
-        LoginStatus status = Database.getInstance().login(connectionId, login, passcode);
+        // This handles checking the password, creating new users, and locking the session.
+        // A login that waited for the SQL server completes on its reader thread - the rest runs on the
+        // connection's executor, in turn with connectionClosed()
+        CompletableFuture<LoginStatus> status = Database.getInstance().loginAsync(connectionId, login, passcode);
+        if (status.isDone()) {
+            return status.thenAccept(done -> loginCompleted(frame, login, clientHeartBeat, done));
+        }
+        return status.thenAcceptAsync(done -> loginCompleted(frame, login, clientHeartBeat, done), serial);
+    }
 
+    private void loginCompleted(StompFrame frame, String login, long[] clientHeartBeat, LoginStatus status) {
         if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY || status == LoginStatus.ADDED_NEW_USER) {
             // 1. Success Case
+            if (closed) {
+                // the connection closed while the login waited for the SQL server
+                Database.getInstance().logout(connectionId);
+                return;
+            }
             this.currentUsername = login;
-            
-            String response = "CONNECTED\n" +
-                            "version:1.2\n" +
-                            "\n" + 
-                            "\u0000";
+
+            // cx: how often the client can send, cy: how often it wants to receive. 0 means never
+            long cx = clientHeartBeat[0];
+            long cy = clientHeartBeat[1];
+            long sendEvery = cy == 0 ? 0 : Math.max(SERVER_SEND_HEARTBEAT_MILLIS, cy);
+            long expectEvery = cx == 0 ? 0 : Math.max(cx, SERVER_RECEIVE_HEARTBEAT_MILLIS);
+
+            boolean heartBeating = frame.getHeader(StompFrame.HEART_BEAT) != null;
+            StompFrame response = new StompFrame(StompCommand.CONNECTED, heartBeating ? 2 : 1)
+                    .addHeader(StompFrame.VERSION, "1.2");
+            if (heartBeating) {
+                response.addHeader(StompFrame.HEART_BEAT,
+                        SERVER_SEND_HEARTBEAT_MILLIS + "," + SERVER_RECEIVE_HEARTBEAT_MILLIS);
+            }
             connections.send(connectionId, response);
+            ((ConnectionsImpl<StompFrame>) connections).connected(connectionId, sendEvery, expectEvery);
             
         } else if (status == LoginStatus.WRONG_PASSWORD) {
             // 2. Wrong Password
-            sendError(headers, "Bad Credentials", "Password does not match");
+            sendError(frame, "Bad Credentials", "Password does not match");
             
         } else if (status == LoginStatus.ALREADY_LOGGED_IN) {
             // 3. User is already active on another client
-            sendError(headers, "User already logged in", "User " + login + " is already active");
+            sendError(frame, "User already logged in", "User " + login + " is already active");
             
         } else if (status == LoginStatus.CLIENT_ALREADY_CONNECTED) {
             // 4. This specific client connection is already authenticated
-            sendError(headers, "Client already connected", "You are already logged in on this connection");
+            sendError(frame, "Client already connected", "You are already logged in on this connection");
         }
     }
 
-    private void handleSubscribe(Map<String, String> headers) {
-        String destination = headers.get("destination");
-        String id = headers.get("id");
+    private CompletionStage<Void> handleSubscribe(StompFrame frame, Executor serial) {
+        if (!requireLogin(frame)) {
+            return DONE;
+        }
+        String destination = frame.getHeader(StompFrame.DESTINATION);
+        String id = frame.getHeader(StompFrame.ID);
 
         if (destination == null || id == null) {
-            sendError(headers, "Malformed Frame", "Missing destination or id");
-            return;
+            sendError(frame, "Malformed Frame", "Missing destination or id");
+            return DONE;
+        }
+
+        // The destination may be a pattern of channels, e.g. /Germany_* or /#
+        String replay = frame.getHeader(StompFrame.REPLAY);
+        if (ConnectionsImpl.isPattern(destination)) {
+            String invalid = ConnectionsImpl.validatePattern(destination);
+            if (invalid == null && replay != null) {
+                invalid = "replay needs a single destination, not a pattern";
+            }
+            if (invalid != null) {
+                sendError(frame, "Malformed Frame", invalid);
+                return DONE;
+            }
+        }
+
+        // Optional replay of the messages that were sent to the destination before
+        long fromSequence = Long.MAX_VALUE;
+        long fromTimestamp = 0;
+        if (replay != null) {
+            try {
+                if (replay.equals("all")) {
+                    fromSequence = 0;
+                } else if (replay.startsWith("seq:")) {
+                    fromSequence = Long.parseLong(replay.substring("seq:".length()));
+                } else if (replay.startsWith("time:")) {
+                    fromSequence = 0;
+                    fromTimestamp = Long.parseLong(replay.substring("time:".length()));
+                } else {
+                    throw new NumberFormatException(replay);
+                }
+            } catch (NumberFormatException e) {
+                sendError(frame, "Malformed Frame", "replay must be all, seq:<message-seq> or time:<epoch millis>");
+                return DONE;
+            }
         }
 
         // 1. Save locally to track this client's subscriptions
         mySubscriptions.put(id, destination);
 
         // 2. Register in the ConnectionsImpl (Cast needed)
-        ((ConnectionsImpl<String>) connections).subscribe(destination, connectionId, Integer.parseInt(id));
+        ConnectionsImpl<StompFrame> connectionsImpl = (ConnectionsImpl<StompFrame>) connections;
+        if (replay == null) {
+            connectionsImpl.subscribe(destination, connectionId, Integer.parseInt(id));
+            return DONE;
+        }
+        return connectionsImpl.subscribe(destination, connectionId, Integer.parseInt(id), fromSequence, fromTimestamp,
+                serial);
     }
 
-    private void handleUnsubscribe(Map<String, String> headers) {
-        String id = headers.get("id");
+    private void handleUnsubscribe(StompFrame frame) {
+        String id = frame.getHeader(StompFrame.ID);
         if (id == null) {
-            sendError(headers, "Malformed Frame", "Missing id");
+            sendError(frame, "Malformed Frame", "Missing id");
             return;
         }
 
         // Find which channel this ID belongs to
         String channel = mySubscriptions.remove(id);
         if (channel != null) {
-            ((ConnectionsImpl<String>) connections).unsubscribe(channel, connectionId);
+            ((ConnectionsImpl<StompFrame>) connections).unsubscribe(channel, connectionId);
         }
     }
 
-    private void handleSend(Map<String, String> headers, String body) {
-        String destination = headers.get("destination");
+    private void handleSend(StompFrame frame) {
+        if (!requireLogin(frame)) {
+            return;
+        }
+        String destination = frame.getHeader(StompFrame.DESTINATION);
         
         // 1. Basic validation
         if (destination == null) {
-            sendError(headers, "Malformed Frame", "Missing destination header");
+            sendError(frame, "Malformed Frame", "Missing destination header");
             return;
         }
 
         // 2. Database Integration: File Tracking
         // We look for the extra header "file-name" that the Client should send.
         // If it exists, it means this message is part of a file report.
-        String filename = headers.get("file-name"); 
+        String filename = frame.getHeader(StompFrame.FILE_NAME);
         
         if (filename != null && currentUsername != null) {
             // We delegate the saving to the Database class.
@@ -157,20 +283,20 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         // 3. Broadcast the message to all subscribers
         // The server adds a message-id and sends it to everyone subscribed to this topic.
-        String messageFrame = "MESSAGE\n" + 
-                            "subscription:0\n" + // In a real impl, you'd map subId to user
-                            "message-id:" + java.util.UUID.randomUUID().toString() + "\n" +
-                            "destination:" + destination + "\n" +
-                            "\n" + 
-                            body + "\u0000";
+        // ConnectionsImpl adds the message-seq of the destination and the subscription header of every subscriber.
+        // The body is shared with the SEND frame as is - it is never decoded nor copied.
+        StompFrame messageFrame = new StompFrame(StompCommand.MESSAGE, 3)
+                .addHeader(StompFrame.MESSAGE_ID, MESSAGE_IDS.next())
+                .addHeader(StompFrame.DESTINATION, destination)
+                .setBody(frame);
 
         connections.send(destination, messageFrame);
     }
 
-    private void handleDisconnect(Map<String, String> headers) {
-        String receiptId = headers.get("receipt");
+    private void handleDisconnect(StompFrame frame) {
+        String receiptId = frame.getHeader(StompFrame.RECEIPT);
         if (receiptId != null) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + receiptId + "\n\n\u0000");
+            connections.send(connectionId, receiptFrame(receiptId));
         }
 
         // IMPORTANT: Update the database to record the logout timestamp
@@ -181,27 +307,47 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         connections.disconnect(connectionId);
     }
 
-    private void sendError(Map<String, String> headers, String errMsg, String desc) {
-        String frame = "ERROR\nmessage:" + errMsg + "\n\n" + desc + "\n\u0000";
+    /**
+     * Destinations (and their message logs) are only created for logged in clients.
+     * @return false if the client did not log in yet, after sending an ERROR
+     */
+    private boolean requireLogin(StompFrame frame) {
+        if (currentUsername != null) {
+            return true;
+        }
+        sendError(frame, "Not connected", "Send a CONNECT frame first");
+        return false;
+    }
+
+    private void sendError(StompFrame cause, String errMsg, String desc) {
+        StompFrame frame = new StompFrame(StompCommand.ERROR, 1)
+                .addHeader(StompFrame.MESSAGE, errMsg)
+                .setBody(desc + "\n");
         connections.send(connectionId, frame);
         shouldTerminate = true;
         connections.disconnect(connectionId);
     }
 
-    // --- Parsers ---
-    
-    private Map<String, String> parseHeaders(String[] lines) {
-        Map<String, String> h = new HashMap<>();
-        for (int i = 1; i < lines.length; i++) {
-            if (lines[i].isEmpty()) break;
-            String[] parts = lines[i].split(":", 2);
-            if (parts.length == 2) h.put(parts[0], parts[1]);
+    /**
+     * @return the two intervals of a heart-beat header, or null if it is malformed
+     */
+    private static long[] parseHeartBeat(String value) {
+        int comma = value.indexOf(',');
+        if (comma == -1) {
+            return null;
+        }
+        try {
+            long cx = Long.parseLong(value.substring(0, comma).trim());
+            long cy = Long.parseLong(value.substring(comma + 1).trim());
+            return cx < 0 || cy < 0 ? null : new long[] { cx, cy };
+        } catch (NumberFormatException e) {
+            return null;
         }
-        return h;
     }
 
-    private String parseBody(String msg) {
-        int idx = msg.indexOf("\n\n");
-        return (idx == -1) ? "" : msg.substring(idx + 2);
+    // --- Frames ---
+
+    private static StompFrame receiptFrame(String receiptId) {
+        return new StompFrame(StompCommand.RECEIPT, 1).addHeader(StompFrame.RECEIPT_ID, receiptId);
     }
-}
\ No newline at end of file
+}
@@ -1,57 +1,129 @@
-package bgu.spl.net.impl.stomp;
-
-import bgu.spl.net.impl.data.Database;
-import bgu.spl.net.srv.Server;
-import java.util.Scanner;
-
-public class StompServer {
-
-    public static void main(String[] args) {
-        // Validating arguments based on the assignment instructions
-        if (args.length < 2) {
-            System.out.println("Usage: <port> <server-type>");
-            System.exit(1);
-        }
-
-        int port = Integer.parseInt(args[0]); // The port to listen on
-        String serverType = args[1];          // "tpc" or "reactor"
-
-        // --- KEYBOARD LISTENER THREAD ---
-        // This runs in parallel to the server to handle the "report" command
-        new Thread(() -> {
-            Scanner scanner = new Scanner(System.in);
-            System.out.println("Server started. Type 'report' to see database stats, or 'exit' to stop.");
-            
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine().trim();
-                if (line.equalsIgnoreCase("report")) {
-                    // Prints the SQL report using the existing Database logic
-                    Database.getInstance().printReport();
-                } else if (line.equalsIgnoreCase("exit")) {
-                    System.out.println("Shutting down...");
-                    System.exit(0);
-                }
-            }
-        }).start();
-
-        // --- START SERVER ---
-        if (serverType.equals("tpc")) {
-            Server.threadPerClient(
-                    port,
-                    () -> new StompMessagingProtocolImpl(), // Protocol factory
-                    StompMessageEncoderDecoder::new  // Decoder factory
-            ).serve();
-
-        } else if (serverType.equals("reactor")) {
-            Server.reactor(
-                    Runtime.getRuntime().availableProcessors(), // Number of threads
-                    port,
-                    () -> new StompMessagingProtocolImpl(), // Protocol factory
-                    StompMessageEncoderDecoder::new  // Decoder factory
-            ).serve();
-
-        } else {
-            System.out.println("Unknown server type. Use 'tpc' or 'reactor'.");
-        }
-    }
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.WriteQueueLimits;
+import bgu.spl.net.srv.metrics.Metrics;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import javax.management.JMException;
+
+public class StompServer {
+
+    // Write queue bounds of every connection: a subscriber that stops reading is disconnected
+    // once 8MB of frames wait for it, and a client whose own frames pile up above 1MB is no longer read
+    // until they drain to 256KB
+    private static final WriteQueueLimits WRITE_QUEUE_LIMITS = new WriteQueueLimits(
+            256 * 1024,
+            1024 * 1024,
+            8 * 1024 * 1024,
+            WriteQueueLimits.OverflowPolicy.ERROR_AND_DISCONNECT,
+            true,
+            ("ERROR\nmessage:Slow consumer\n\nToo many frames are waiting to be delivered, disconnecting\n\u0000")
+                    .getBytes(StandardCharsets.UTF_8));
+
+    public static void main(String[] args) {
+        // Validating arguments based on the assignment instructions
+        if (args.length < 2) {
+            System.out.println("Usage: <port> <server-type> [selector-threads | carrier-threads]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]); // The port to listen on
+        String serverType = args[1];          // "tpc", "virtual", "reactor" or "multireactor"
+
+        // Warm startup, before any client connects: the registered users (so a returning user logs in without
+        // the SQL server) and the report counts from the totals of the previous runs
+        Database.getInstance().loadUsers();
+        Database.getInstance().loadReportAggregates();
+
+        // The same metrics as the 'stats' command, for jconsole and other JMX clients
+        try {
+            Metrics.getInstance().registerMBean();
+        } catch (JMException e) {
+            System.err.println("Metrics are not available over JMX: " + e);
+        }
+
+        // --- KEYBOARD LISTENER THREAD ---
+        // This runs in parallel to the server to handle the "report" command
+        new Thread(() -> {
+            Scanner scanner = new Scanner(System.in);
+            System.out.println("Server started. Type 'report' to see database stats, 'report full' for every login"
+                    + " and file, 'stats' for the server metrics, or 'exit' to stop.");
+            
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine().trim();
+                if (line.equalsIgnoreCase("report")) {
+                    // Prints the report from the totals Database keeps in memory
+                    Database.getInstance().printReport();
+                } else if (line.equalsIgnoreCase("report full")) {
+                    // Prints every row of the SQL tables
+                    Database.getInstance().printFullReport();
+                } else if (line.equalsIgnoreCase("stats")) {
+                    // Counters, gauges and latency percentiles since the server started
+                    Metrics.getInstance().print();
+                } else if (line.equalsIgnoreCase("exit")) {
+                    System.out.println("Shutting down...");
+                    System.exit(0);
+                }
+            }
+        }).start();
+
+        // --- START SERVER ---
+        if (serverType.equals("tpc")) {
+            Server.threadPerClient(
+                    port,
+                    WRITE_QUEUE_LIMITS,
+                    () -> new StompMessagingProtocolImpl(), // Protocol factory
+                    StompMessageEncoderDecoder::new  // Decoder factory
+            ).serve();
+
+        } else if (serverType.equals("virtual")) {
+            // Thread per client on virtual threads (Java 21+), for many mostly idle clients.
+            // Optional third argument: number of carrier threads (defaults to one per core)
+            int carriers = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+            Server<StompFrame> server;
+            try {
+                server = Server.virtualThreadPerClient(
+                        carriers,
+                        port,
+                        WRITE_QUEUE_LIMITS,
+                        () -> new StompMessagingProtocolImpl(), // Protocol factory
+                        StompMessageEncoderDecoder::new  // Decoder factory
+                );
+            } catch (UnsupportedOperationException e) {
+                System.out.println(e.getMessage() + ". Use 'tpc' instead.");
+                System.exit(1);
+                return;
+            }
+            server.serve();
+
+        } else if (serverType.equals("reactor")) {
+            Server.multiReactor(
+                    Runtime.getRuntime().availableProcessors(), // Number of threads
+                    1, // A single selector thread that also accepts
+                    port,
+                    WRITE_QUEUE_LIMITS,
+                    () -> new StompMessagingProtocolImpl(), // Protocol factory
+                    StompMessageEncoderDecoder::new  // Decoder factory
+            ).serve();
+
+        } else if (serverType.equals("multireactor")) {
+            // Optional third argument: number of selector threads (defaults to half of the cores)
+            int selectors = args.length > 2
+                    ? Integer.parseInt(args[2])
+                    : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            Server.multiReactor(
+                    Runtime.getRuntime().availableProcessors(), // Number of threads
+                    selectors,
+                    port,
+                    WRITE_QUEUE_LIMITS,
+                    () -> new StompMessagingProtocolImpl(), // Protocol factory
+                    StompMessageEncoderDecoder::new  // Decoder factory
+            ).serve();
+
+        } else {
+            System.out.println("Unknown server type. Use 'tpc', 'virtual', 'reactor' or 'multireactor'.");
+        }
+    }
 }
\ No newline at end of file
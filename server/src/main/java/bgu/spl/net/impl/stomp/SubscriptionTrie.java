@@ -0,0 +1,226 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The subscriptions to destination patterns, in a trie of destination segments.
+ * <p>
+ * A destination is split into segments at every '/' and '_' - game channels are named {@code /<home>_<away>},
+ * so {@code /Germany_Japan} is the segments "", "Germany" and "Japan". In a pattern a {@value #ANY_SEGMENT}
+ * segment matches any one segment and a last {@value #ANY_SEGMENTS} segment matches any number of segments,
+ * none included: {@code /Germany_*} and {@code /*_Germany} follow every game of Germany, {@code /#} every game.
+ * <p>
+ * Matching a destination walks the trie along its segments, so it costs the depth of the destination (times the
+ * wildcards on the way) and not the number of patterns. The result is cached per destination until the next
+ * pattern subscription or unsubscription, so the walk only happens on the first message to a destination.
+ */
+class SubscriptionTrie<V> {
+
+    static final String ANY_SEGMENT = "*";
+    static final String ANY_SEGMENTS = "#";
+
+    // more destinations than this and the cache starts over, it must not grow with every destination ever used
+    private static final int MAX_CACHED_DESTINATIONS = 10_000;
+
+    private final Node<V> root = new Node<>();
+    private final ConcurrentHashMap<String, Match<V>> cache = new ConcurrentHashMap<>();
+    private volatile long version = 0; // changes with every subscription change, written under the trie lock
+    private volatile int size = 0;
+
+    /**
+     * @return true if the destination has a wildcard segment
+     */
+    static boolean isPattern(String destination) {
+        if (destination.indexOf('*') == -1 && destination.indexOf('#') == -1) {
+            return false;
+        }
+        for (String segment : segments(destination)) {
+            if (segment.equals(ANY_SEGMENT) || segment.equals(ANY_SEGMENTS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return why the pattern can not be subscribed to, or null if it can
+     */
+    static String validate(String pattern) {
+        String[] segments = segments(pattern);
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments[i].equals(ANY_SEGMENTS)) {
+                return ANY_SEGMENTS + " may only be the last segment of a destination";
+            }
+        }
+        return null;
+    }
+
+    private static String[] segments(String destination) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < destination.length(); i++) {
+            char c = destination.charAt(i);
+            if (c == '/' || c == '_') {
+                segments.add(destination.substring(start, i));
+                start = i + 1;
+            }
+        }
+        segments.add(destination.substring(start));
+        return segments.toArray(new String[0]);
+    }
+
+    synchronized void add(String pattern, int connectionId, V value) {
+        Node<V> node = root;
+        String[] segments = segments(pattern);
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.equals(ANY_SEGMENTS)) {
+                if (node.anySegments == null) {
+                    node.anySegments = new LinkedHashMap<>();
+                }
+                put(node.anySegments, connectionId, value);
+                return;
+            }
+            node = node.child(segment);
+        }
+        if (node.subscribers == null) {
+            node.subscribers = new LinkedHashMap<>();
+        }
+        put(node.subscribers, connectionId, value);
+    }
+
+    /**
+     * @return true if the connection was subscribed to the pattern
+     */
+    synchronized boolean remove(String pattern, int connectionId) {
+        boolean removed = remove(root, segments(pattern), 0, connectionId);
+        if (removed) {
+            size--;
+            changed();
+        }
+        return removed;
+    }
+
+    private boolean remove(Node<V> node, String[] segments, int index, int connectionId) {
+        if (index == segments.length) {
+            return node.subscribers != null && node.subscribers.remove(connectionId) != null;
+        }
+        String segment = segments[index];
+        if (segment.equals(ANY_SEGMENTS)) {
+            return node.anySegments != null && node.anySegments.remove(connectionId) != null;
+        }
+        boolean wildcard = segment.equals(ANY_SEGMENT);
+        Node<V> child = wildcard ? node.anySegment : node.children == null ? null : node.children.get(segment);
+        if (child == null || !remove(child, segments, index + 1, connectionId)) {
+            return false;
+        }
+        if (child.isEmpty()) { // nodes left without subscriptions are dropped
+            if (wildcard) {
+                node.anySegment = null;
+            } else {
+                node.children.remove(segment);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the subscriptions whose pattern matches the destination, at most one per connection and pattern
+     */
+    List<V> match(String destination) {
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        Match<V> cached = cache.get(destination);
+        if (cached != null && cached.version == version) {
+            return cached.values;
+        }
+        synchronized (this) {
+            List<V> values = new ArrayList<>();
+            collect(root, segments(destination), 0, values);
+            if (cache.size() >= MAX_CACHED_DESTINATIONS) {
+                cache.clear();
+            }
+            values = Collections.unmodifiableList(values);
+            cache.put(destination, new Match<>(version, values));
+            return values;
+        }
+    }
+
+    private void collect(Node<V> node, String[] segments, int index, List<V> values) {
+        if (node.anySegments != null) {
+            values.addAll(node.anySegments.values());
+        }
+        if (index == segments.length) {
+            if (node.subscribers != null) {
+                values.addAll(node.subscribers.values());
+            }
+            return;
+        }
+        Node<V> child = node.children == null ? null : node.children.get(segments[index]);
+        if (child != null) {
+            collect(child, segments, index + 1, values);
+        }
+        if (node.anySegment != null) {
+            collect(node.anySegment, segments, index + 1, values);
+        }
+    }
+
+    private void put(Map<Integer, V> subscribers, int connectionId, V value) {
+        if (subscribers.put(connectionId, value) == null) {
+            size++;
+        }
+        changed();
+    }
+
+    private void changed() {
+        version++;
+        cache.clear();
+    }
+
+    /**
+     * A node of the trie, guarded by the trie lock. The maps are created when first needed, most nodes only have
+     * some of them.
+     */
+    private static final class Node<V> {
+        Map<String, Node<V>> children; // by literal segment
+        Node<V> anySegment; // the child for a '*' segment
+        Map<Integer, V> subscribers; // of the patterns that end at this node, by connection id
+        Map<Integer, V> anySegments; // of the patterns that end with '#' after this node, by connection id
+
+        Node<V> child(String segment) {
+            if (segment.equals(ANY_SEGMENT)) {
+                if (anySegment == null) {
+                    anySegment = new Node<>();
+                }
+                return anySegment;
+            }
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            return children.computeIfAbsent(segment, name -> new Node<>());
+        }
+
+        boolean isEmpty() {
+            return (children == null || children.isEmpty()) && anySegment == null
+                    && (subscribers == null || subscribers.isEmpty())
+                    && (anySegments == null || anySegments.isEmpty());
+        }
+    }
+
+    private static final class Match<V> {
+        final long version;
+        final List<V> values;
+
+        Match(long version, List<V> values) {
+            this.version = version;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The pending tasks of one actor of the {@link ActorThreadPool}.
+ * Any thread may add tasks (multiple producers) but only the single pool thread currently playing the actor
+ * takes them out, and the scheduled flag makes sure at most one such thread exists at any time.
+ * The statistics are written by that thread only and may be read from anywhere.
+ */
+public final class ActorMailbox {
+
+    final ConcurrentLinkedQueue<Envelope> tasks = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private volatile long turns = 0;
+    private volatile long executedTasks = 0;
+    private volatile long totalQueueLatencyNanos = 0;
+    private volatile long maxQueueLatencyNanos = 0;
+
+    /**
+     * @return the number of tasks waiting for their turn (not including a task that is running right now)
+     */
+    public int pending() {
+        return tasks.size();
+    }
+
+    /**
+     * @return how many times a pool thread picked this actor up
+     */
+    public long getTurns() {
+        return turns;
+    }
+
+    /**
+     * @return how many of the tasks of this actor were started
+     */
+    public long getExecutedTasks() {
+        return executedTasks;
+    }
+
+    /**
+     * @return the average time a task of this actor waited from its submission until it started
+     */
+    public long getAverageQueueLatencyNanos() {
+        long executed = executedTasks;
+        return executed == 0 ? 0 : totalQueueLatencyNanos / executed;
+    }
+
+    /**
+     * @return the longest time a task of this actor waited from its submission until it started
+     */
+    public long getMaxQueueLatencyNanos() {
+        return maxQueueLatencyNanos;
+    }
+
+    /*package*/ void recordTask(long queueLatencyNanos) {
+        executedTasks++;
+        totalQueueLatencyNanos += queueLatencyNanos;
+        if (queueLatencyNanos > maxQueueLatencyNanos) {
+            maxQueueLatencyNanos = queueLatencyNanos;
+        }
+    }
+
+    /*package*/ void recordTurn() {
+        turns++;
+    }
+
+    /**
+     * A submitted task together with its submission time.
+     */
+    static final class Envelope {
+        final Runnable task;
+        final long submittedAt;
+
+        Envelope(Runnable task, long submittedAt) {
+            this.task = task;
+            this.submittedAt = submittedAt;
+        }
+    }
+}
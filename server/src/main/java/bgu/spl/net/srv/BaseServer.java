@@ -1,91 +1,146 @@
-package bgu.spl.net.srv;
-
-import bgu.spl.net.api.MessageEncoderDecoder;
-import bgu.spl.net.api.MessagingProtocol;
-import bgu.spl.net.api.StompMessagingProtocol;
-import bgu.spl.net.impl.stomp.ConnectionsImpl;
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Supplier;
-
-public abstract class BaseServer<T> implements Server<T> {
-
-    private final int port;
-    private final Supplier<MessagingProtocol<T>> protocolFactory;
-    private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
-    private ServerSocket sock;
-    
-    // We added these fields to manage the shared state of the STOMP server
-    private final ConnectionsImpl<T> connections;
-    private final AtomicInteger connectionIdCounter;
-
-    public BaseServer(
-            int port,
-            Supplier<MessagingProtocol<T>> protocolFactory,
-            Supplier<MessageEncoderDecoder<T>> encdecFactory) {
-
-        this.port = port;
-        this.protocolFactory = protocolFactory;
-        this.encdecFactory = encdecFactory;
-        this.sock = null;
-        
-        // Initialize the shared Connections object and the ID counter
-        this.connections = new ConnectionsImpl<>();
-        this.connectionIdCounter = new AtomicInteger(0);
-    }
-
-    @Override
-    public void serve() {
-
-        try (ServerSocket serverSock = new ServerSocket(port)) {
-            System.out.println("Server started");
-
-            this.sock = serverSock; // just to be able to close
-
-            while (!Thread.currentThread().isInterrupted()) {
-
-                Socket clientSock = serverSock.accept();
-
-                // 1. Create a new Protocol and EncoderDecoder instance for this specific client
-                MessagingProtocol<T> protocol = protocolFactory.get();
-                MessageEncoderDecoder<T> encdec = encdecFactory.get();
-
-                // 2. Create the BlockingConnectionHandler (the runnable task)
-                BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
-                        clientSock,
-                        encdec,
-                        protocol);
-
-                // 3. Generate a unique ID for this client
-                int connectionId = connectionIdCounter.getAndIncrement();
-
-                // 4. Initialize the STOMP protocol
-                // This injects the client's ID and the shared Connections object into the protocol instance
-                if (protocol instanceof StompMessagingProtocol) {
-                    ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
-                }
-
-                // 5. Register the new handler in the Connections map
-                // This allows the server to send messages to this client later using its ID
-                connections.addConnection(connectionId, handler);
-
-                // 6. Execute the handler (in TPC, this starts a new thread)
-                execute(handler);
-            }
-        } catch (IOException ex) {
-        }
-
-        System.out.println("server closed!!!");
-    }
-
-    @Override
-    public void close() throws IOException {
-        if (sock != null)
-            sock.close();
-    }
-
-    protected abstract void execute(BlockingConnectionHandler<T>  handler);
-
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.stomp.ConnectionsImpl;
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Metrics;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public abstract class BaseServer<T> implements Server<T> {
+
+    static final long TIMER_TICK_MILLIS = 100;
+    static final int TIMER_WHEEL_SIZE = 512;
+    // the read and write buffers of a virtual thread per client connection, 2k
+    static final int VIRTUAL_THREAD_BUFFER_SIZE = 1 << 11;
+    // connections the OS keeps waiting for accept(), enough for thousands of clients that connect at once
+    static final int ACCEPT_BACKLOG = Integer.getInteger("stomp.accept.backlog", 1024);
+
+    private final int port;
+    private final Supplier<MessagingProtocol<T>> protocolFactory;
+    private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
+    private final int bufferSize;
+    private final WriteQueueLimits limits;
+    // runs the writer tasks of the connections (see BlockingConnectionHandler), a thread only while one writes
+    private final ExecutorService writers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "connection-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocket sock;
+    
+    // We added these fields to manage the shared state of the STOMP server
+    private final ConnectionsImpl<T> connections;
+    private final AtomicInteger connectionIdCounter;
+    // heart-beats and connection timeouts, for all the connections of the server
+    private final TimerWheel timer;
+    private final Counter accepted = Metrics.getInstance().counter("connections.accepted");
+
+    public BaseServer(
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(port, protocolFactory, encdecFactory, BlockingConnectionHandler.DEFAULT_BUFFER_SIZE,
+                WriteQueueLimits.UNBOUNDED);
+    }
+
+    /**
+     * @param bufferSize the size of the read and the write buffer of every connection handler
+     * @param limits     the bounds of the outbound queue of every connection handler
+     */
+    public BaseServer(
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            int bufferSize,
+            WriteQueueLimits limits) {
+
+        this.port = port;
+        this.bufferSize = bufferSize;
+        this.limits = limits;
+        this.protocolFactory = protocolFactory;
+        this.encdecFactory = encdecFactory;
+        this.sock = null;
+        
+        // Initialize the shared Connections object and the ID counter
+        this.timer = new TimerWheel(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, "connection-timer");
+        this.connections = new ConnectionsImpl<>(timer);
+        this.connectionIdCounter = new AtomicInteger(0);
+        Metrics.getInstance().gauge("timer.pending", timer::getPending);
+    }
+
+    @Override
+    public void serve() {
+
+        try (ServerSocket serverSock = new ServerSocket(port, ACCEPT_BACKLOG)) {
+            System.out.println("Server started");
+
+            this.sock = serverSock; // just to be able to close
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                Socket clientSock = serverSock.accept();
+
+                // 1. Create a new Protocol and EncoderDecoder instance for this specific client
+                MessagingProtocol<T> protocol = protocolFactory.get();
+                MessageEncoderDecoder<T> encdec = encdecFactory.get();
+
+                // 2. Create the BlockingConnectionHandler (the runnable task)
+                BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
+                        clientSock,
+                        encdec,
+                        protocol,
+                        bufferSize,
+                        this::executeWrite,
+                        limits,
+                        timer);
+
+                // 3. Generate a unique ID for this client
+                int connectionId = connectionIdCounter.getAndIncrement();
+
+                // 4. Initialize the STOMP protocol
+                // This injects the client's ID and the shared Connections object into the protocol instance
+                if (protocol instanceof StompMessagingProtocol) {
+                    ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
+                }
+
+                // 5. Register the new handler in the Connections map
+                // This allows the server to send messages to this client later using its ID
+                connections.addConnection(connectionId, handler);
+                accepted.increment();
+
+                // 6. Execute the handler (in TPC, this starts a new thread)
+                execute(handler);
+            }
+        } catch (IOException ex) {
+        } finally {
+            timer.close();
+            writers.shutdown();
+        }
+
+        System.out.println("server closed!!!");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (sock != null)
+            sock.close();
+    }
+
+    protected abstract void execute(BlockingConnectionHandler<T>  handler);
+
+    /**
+     * Runs the writer task of a connection, which writes its queued frames and ends once they are all written.
+     */
+    protected void executeWrite(Runnable writer) {
+        writers.execute(writer);
+    }
+
 }
\ No newline at end of file
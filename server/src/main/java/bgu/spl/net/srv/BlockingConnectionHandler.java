@@ -1,70 +1,532 @@
-package bgu.spl.net.srv;
-
-import bgu.spl.net.api.MessageEncoderDecoder;
-import bgu.spl.net.api.MessagingProtocol;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
-import java.net.Socket;
-
-public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
-
-    private final MessagingProtocol<T> protocol;
-    private final MessageEncoderDecoder<T> encdec;
-    private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
-    private volatile boolean connected = true;
-
-    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
-        this.sock = sock;
-        this.encdec = reader;
-        this.protocol = protocol;
-    }
-
-    @Override
-    public void run() {
-        try (Socket sock = this.sock) { //just for automatic closing
-            int read;
-
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
-
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    T response = protocol.process(nextMessage);
-                    if (response != null) {
-                        out.write(encdec.encode(response));
-                        out.flush();
-                    }
-                }
-            }
-
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
-
-    }
-
-    @Override
-    public void close() throws IOException {
-        connected = false;
-        sock.close();
-    }
-
-    @Override
-    public void send(T msg) {
-        if (msg != null) {
-            try {
-                // We synchronize to prevent corruption if multiple threads try to send simultaneously
-                synchronized (out) { 
-                    out.write(encdec.encode(msg));
-                    out.flush();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
-    }
-}
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Histogram;
+import bgu.spl.net.srv.metrics.Metrics;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection of a thread per client server: its thread reads and processes the frames of the client, and the
+ * frames sent to the client wait in an outbound queue that a writer task drains.
+ * <p>
+ * Sending never touches the socket, so a publisher fanning a message out is not held up by a subscriber that does
+ * not read. The writer is scheduled when the queue stops being empty and writes whatever queued meanwhile with a
+ * single flush. The queue is bounded by {@link WriteQueueLimits} like the reactor's write queues, and a write that
+ * makes no progress for {@value #WRITE_TIMEOUT_PROPERTY} milliseconds (10s by default) closes the connection -
+ * progress is recorded for every chunk of up to the buffer size that the socket takes.
+ */
+public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
+
+    static final int DEFAULT_BUFFER_SIZE = 1 << 13; //8k
+    static final String WRITE_TIMEOUT_PROPERTY = "stomp.write.timeout.millis";
+    // 0 = writes never time out
+    private static final long WRITE_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(WRITE_TIMEOUT_PROPERTY, 10_000));
+    //the most the writer takes from the queue for one flush, the rest can still be dropped on overflow
+    private static final long MAX_BATCH_BYTES = 64 * 1024;
+    //a blocked socket write only returns once the kernel freed a good part of the send buffer, so with writes
+    //timing out the buffer is kept small enough that a slow but live reader frees some of it well within the timeout
+    private static final int TIMED_SEND_BUFFER_SIZE = 256 * 1024;
+    private static final byte[] HEARTBEAT = {'\n'};
+
+    //the same metrics as the reactor's, see NonBlockingConnectionHandler
+    private static final Histogram DECODE_LATENCY = Metrics.getInstance().latency("frame.decode.nanos");
+    private static final Histogram PROCESS_LATENCY = Metrics.getInstance().latency("frame.process.nanos");
+    private static final Histogram QUEUED_BYTES = Metrics.getInstance().histogram("write.queue.bytes");
+    private static final Counter DROPPED_MESSAGES = Metrics.getInstance().counter("write.dropped.messages");
+    //frames written with one flush, above 1 when frames queued while the writer was busy
+    private static final Histogram FLUSHED_MESSAGES = Metrics.getInstance().histogram("write.flush.messages");
+    private static final Counter WRITE_TIMEOUTS = Metrics.getInstance().counter("write.timeouts");
+
+    private final MessagingProtocol<T> protocol;
+    private final MessageEncoderDecoder<T> encdec;
+    private final Socket sock;
+    private final int bufferSize;
+    private final Executor writer;
+    private final WriteQueueLimits limits;
+    private final TimerWheel timer;
+    private BufferedOutputStream out; //touched only by the writer task
+    private volatile boolean connected = true;
+    private volatile long lastReadTime = System.currentTimeMillis();
+    private volatile long lastWriteTime = lastReadTime;
+    private volatile long writeProgressAt = 0; //nanos, when the current write started or last made progress
+
+    //the continuations of an asynchronous processing, run by the reader thread while it waits for the response -
+    //never concurrently with the processing of another message or with connectionClosed
+    private final LinkedBlockingQueue<Runnable> serialTasks = new LinkedBlockingQueue<>();
+    private final Executor serial = serialTasks::add;
+
+    //everything below is guarded by writeLock - a ReentrantLock and not a monitor, a virtual thread that waits
+    //inside a monitor pins its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition drained = writeLock.newCondition(); //the queue shrank, or the connection closed
+    private final ArrayDeque<Outbound> writeQueue = new ArrayDeque<>();
+    private final ArrayDeque<Outbound> writing = new ArrayDeque<>(); //the batch the writer took from the queue
+    private boolean draining = false; //the writer task is scheduled or running
+    private boolean backedUp = false; //the queue went above the high watermark and did not drain to the low one yet
+    private boolean closeWhenDrained = false; //the overflow notice is queued, the connection closes after it
+    private long queuedBytes = 0; //of the queue and of the batch being written
+    private long writingBytes = 0; //of the batch being written
+
+    /**
+     * A connection that writes on the thread that sends (whichever thread sends while nothing is being written
+     * writes whatever queues meanwhile), with no bounds and no write timeout.
+     */
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
+        this(sock, reader, protocol, DEFAULT_BUFFER_SIZE, Runnable::run, WriteQueueLimits.UNBOUNDED, null);
+    }
+
+    /**
+     * @param bufferSize the size of the read buffer and of the write buffer - smaller buffers let a server hold
+     *                   more mostly idle connections, larger ones need fewer system calls for large frames
+     * @param writer     runs the writer task of the connection
+     * @param limits     the bounds of the outbound queue
+     * @param timer      times the writes out, null for no write timeout
+     */
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol,
+            int bufferSize, Executor writer, WriteQueueLimits limits, TimerWheel timer) {
+        this.sock = sock;
+        this.encdec = reader;
+        this.protocol = protocol;
+        this.bufferSize = bufferSize;
+        this.writer = writer;
+        this.limits = limits;
+        this.timer = WRITE_TIMEOUT_NANOS > 0 ? timer : null;
+    }
+
+    @Override
+    public void run() {
+        try (Socket sock = this.sock) { //just for automatic closing
+            int read;
+            byte[] chunk = new byte[bufferSize];
+
+            //the chunk is the read buffer, a BufferedInputStream would only copy it once more
+            InputStream in = sock.getInputStream();
+
+            while (!protocol.shouldTerminate() && connected && awaitReadable() && (read = in.read(chunk)) >= 0) {
+                lastReadTime = System.currentTimeMillis();
+                long decodeStart = System.nanoTime();
+                List<T> messages = encdec.decode(ByteBuffer.wrap(chunk, 0, read));
+                DECODE_LATENCY.recordSince(decodeStart);
+                for (T nextMessage : messages) {
+                    //this thread serves only this client, waiting for an asynchronous response keeps the order
+                    long start = System.nanoTime();
+                    T response = await(protocol.processAsync(nextMessage, serial).toCompletableFuture());
+                    if (response != null) {
+                        send(response);
+                    }
+                    PROCESS_LATENCY.recordSince(start);
+                    if (protocol.shouldTerminate()) {
+                        break;
+                    }
+                }
+            }
+            //the last responses, e.g. the RECEIPT of a DISCONNECT, go out before the socket is closed
+            awaitDrained();
+
+        } catch (IOException ex) {
+            if (connected) { //otherwise closed on purpose, e.g. by the idle reaper
+                ex.printStackTrace();
+            }
+        } finally {
+            connected = false;
+            discardQueue();
+            protocol.connectionClosed();
+        }
+
+    }
+
+    /**
+     * Runs the continuations of the processing until its response is ready.
+     */
+    private T await(CompletableFuture<T> response) throws InterruptedIOException {
+        if (!response.isDone()) {
+            response.whenComplete((result, error) -> serialTasks.add(() -> { })); //wakes the loop up
+            try {
+                while (!response.isDone()) {
+                    serialTasks.take().run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while processing a message");
+            }
+            Runnable task;
+            while ((task = serialTasks.poll()) != null) {
+                task.run();
+            }
+        }
+        return response.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connected = false;
+        discardQueue();
+        sock.close();
+    }
+
+    @Override
+    public void send(T msg) {
+        if (msg != null) {
+            write(ByteBuffer.wrap(encdec.encode(msg)));
+        }
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer... parts) {
+        write(parts);
+    }
+
+    @Override
+    public void sendHeartbeat() {
+        write(ByteBuffer.wrap(HEARTBEAT));
+    }
+
+    @Override
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    @Override
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    /**
+     * @return the bytes waiting to be written to the socket, including the batch the writer is writing
+     */
+    public long getQueuedBytes() {
+        writeLock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isBackedUp() {
+        writeLock.lock();
+        try {
+            return backedUp;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues the message and schedules the writer if it is not scheduled already.
+     */
+    private void write(ByteBuffer... parts) {
+        long size = remaining(parts);
+        boolean schedule;
+        writeLock.lock();
+        try {
+            if (!connected || closeWhenDrained) {
+                return;
+            }
+            lastWriteTime = System.currentTimeMillis();
+            if (queuedBytes + size <= limits.getMaxQueuedBytes() || makeRoom(size)) {
+                enqueue(new Outbound(parts, size));
+            }
+            schedule = !draining && !writeQueue.isEmpty();
+            if (schedule) {
+                draining = true;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (schedule) {
+            try {
+                writer.execute(this::drain);
+            } catch (RejectedExecutionException ex) {
+                closeQuietly(); //the server is shutting down
+            }
+        }
+    }
+
+    private void enqueue(Outbound message) {
+        writeQueue.add(message);
+        queuedBytes += message.bytes;
+        QUEUED_BYTES.record(queuedBytes);
+        if (!backedUp && queuedBytes > limits.getHighWatermark()) {
+            backedUp = true;
+        }
+    }
+
+    /**
+     * Applies the overflow policy for an incoming message of the given size. Only the messages still in the queue
+     * may be dropped, the batch the writer took is already on its way.
+     *
+     * @return true if the incoming message should still be queued
+     */
+    private boolean makeRoom(long size) {
+        switch (limits.getOverflowPolicy()) {
+            case DROP_NEWEST:
+                DROPPED_MESSAGES.increment();
+                return false;
+
+            case DROP_OLDEST:
+                if (writingBytes + size > limits.getMaxQueuedBytes()) {
+                    //even an empty queue would not fit it next to the batch being written - the new message goes,
+                    //the queue stays
+                    DROPPED_MESSAGES.increment();
+                    return false;
+                }
+                Iterator<Outbound> it = writeQueue.iterator();
+                while (queuedBytes + size > limits.getMaxQueuedBytes() && it.hasNext()) {
+                    queuedBytes -= it.next().bytes;
+                    it.remove();
+                    DROPPED_MESSAGES.increment();
+                }
+                return true;
+
+            default: //ERROR_AND_DISCONNECT
+                DROPPED_MESSAGES.add(writeQueue.size() + 1);
+                writeQueue.clear();
+                queuedBytes = writingBytes;
+                byte[] notice = limits.getOverflowNotice();
+                if (notice != null && timer != null) {
+                    //after the batch being written, so it does not cut a frame - and the write timeout
+                    //closes the connection if the peer does not even read that
+                    enqueue(new Outbound(new ByteBuffer[] {ByteBuffer.wrap(notice)}, notice.length));
+                    closeWhenDrained = true;
+                } else {
+                    connected = false;
+                    drained.signalAll();
+                    closeQuietly();
+                }
+                return false;
+        }
+    }
+
+    /**
+     * The writer task: writes the queued messages in batches, every batch with one flush, until the queue is empty.
+     * The lock is not held while writing, senders keep queueing meanwhile.
+     */
+    private void drain() {
+        WriteWatchdog watchdog = null;
+        try {
+            while (true) {
+                writeLock.lock();
+                try {
+                    if (writeQueue.isEmpty() || !connected) {
+                        draining = false;
+                        drained.signalAll();
+                        if (closeWhenDrained) {
+                            connected = false;
+                            closeQuietly();
+                        }
+                        return;
+                    }
+                    //whole messages, at least one, up to MAX_BATCH_BYTES
+                    do {
+                        Outbound message = writeQueue.poll();
+                        writing.add(message);
+                        writingBytes += message.bytes;
+                    } while (!writeQueue.isEmpty() && writingBytes + writeQueue.peek().bytes <= MAX_BATCH_BYTES);
+                } finally {
+                    writeLock.unlock();
+                }
+
+                if (out == null) {
+                    if (timer != null) {
+                        sock.setSendBufferSize(TIMED_SEND_BUFFER_SIZE);
+                    }
+                    out = new BufferedOutputStream(sock.getOutputStream(), bufferSize);
+                }
+                if (watchdog == null && timer != null) {
+                    watchdog = new WriteWatchdog();
+                    timer.schedule(watchdog, TimeUnit.NANOSECONDS.toMillis(WRITE_TIMEOUT_NANOS));
+                }
+                FLUSHED_MESSAGES.record(writing.size());
+                for (Outbound message : writing) {
+                    writeProgressAt = System.nanoTime();
+                    for (ByteBuffer part : message.parts) {
+                        writePart(part);
+                    }
+                }
+                writeProgressAt = System.nanoTime();
+                out.flush();
+                writeProgressAt = 0;
+                writing.clear();
+
+                writeLock.lock();
+                try {
+                    queuedBytes -= writingBytes;
+                    writingBytes = 0;
+                    if (backedUp && queuedBytes <= limits.getLowWatermark()) {
+                        backedUp = false;
+                    }
+                    drained.signalAll();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (IOException ex) {
+            if (connected) {
+                closeQuietly(); //the reader finds out and cleans up
+            }
+            writeLock.lock();
+            try {
+                writing.clear();
+                queuedBytes -= writingBytes;
+                writingBytes = 0;
+                draining = false;
+                drained.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            writeProgressAt = 0;
+            if (watchdog != null) {
+                watchdog.done = true;
+            }
+        }
+    }
+
+    /**
+     * Pauses the reader while its own outbound queue is backed up, if the limits say so.
+     *
+     * @return false if the connection closed meanwhile
+     */
+    private boolean awaitReadable() {
+        if (!limits.isPauseReadsWhenBackedUp()) {
+            return true;
+        }
+        writeLock.lock();
+        try {
+            while (backedUp && connected) {
+                drained.await();
+            }
+            return connected;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the writer wrote everything, or the connection closed.
+     */
+    private void awaitDrained() {
+        writeLock.lock();
+        try {
+            while (draining && connected) {
+                drained.await();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void discardQueue() {
+        writeLock.lock();
+        try {
+            writeQueue.clear();
+            queuedBytes = writingBytes; //the writer stops after its batch
+            backedUp = false;
+            drained.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            //closing anyway
+        }
+    }
+
+    /**
+     * Writes a part in chunks of at most the buffer size, recording the progress after every chunk, so the write
+     * timeout sees a large frame going out to a slow reader as progress and not as a stall.
+     */
+    private void writePart(ByteBuffer part) throws IOException {
+        if (part.hasArray()) {
+            while (part.hasRemaining()) {
+                int length = Math.min(bufferSize, part.remaining());
+                out.write(part.array(), part.arrayOffset() + part.position(), length);
+                part.position(part.position() + length);
+                writeProgressAt = System.nanoTime();
+            }
+        } else {
+            //a direct buffer, e.g. a record replayed from the message log - copied in chunks, not byte by byte
+            byte[] chunk = new byte[Math.min(part.remaining(), bufferSize)];
+            while (part.hasRemaining()) {
+                int length = Math.min(chunk.length, part.remaining());
+                part.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+                writeProgressAt = System.nanoTime();
+            }
+        }
+    }
+
+    private static long remaining(ByteBuffer[] parts) {
+        long remaining = 0;
+        for (ByteBuffer part : parts) {
+            remaining += part.remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * Closes the connection when a write of one run of the writer makes no progress for the write timeout,
+     * checking again as long as the run goes on. A blocked socket write can not be interrupted, closing the
+     * socket is what ends it.
+     */
+    private final class WriteWatchdog implements Runnable {
+        volatile boolean done = false;
+
+        @Override
+        public void run() {
+            if (done) {
+                return;
+            }
+            long progressAt = writeProgressAt;
+            long idleNanos = progressAt == 0 ? 0 : System.nanoTime() - progressAt;
+            if (idleNanos >= WRITE_TIMEOUT_NANOS) {
+                WRITE_TIMEOUTS.increment();
+                closeQuietly();
+            } else {
+                timer.schedule(this, Math.max(1, TimeUnit.NANOSECONDS.toMillis(WRITE_TIMEOUT_NANOS - idleNanos)));
+            }
+        }
+    }
+
+    /**
+     * One message waiting in the outbound queue, made of one or more encoded parts.
+     */
+    private static final class Outbound {
+        final ByteBuffer[] parts;
+        final long bytes;
+
+        Outbound(ByteBuffer[] parts, long bytes) {
+            this.parts = parts;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,22 +1,56 @@
-/*
- * To change this license header, choose License Headers in Project Properties.
- * To change this template file, choose Tools | Templates
- * and open the template in the editor.
- */
-package bgu.spl.net.srv;
-
-import java.io.Closeable;
-
-/**
- * The ConnectionHandler interface for Message of type T
- */
-public interface ConnectionHandler<T> extends Closeable {
-
-    /**
-     * Comment the following lines (both send methods) for the existing implentations to work.
-     *
-     */
-
-    void send(T msg);
-
-}
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgu.spl.net.srv;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * The ConnectionHandler interface for Message of type T
+ */
+public interface ConnectionHandler<T> extends Closeable {
+
+    /**
+     * Comment the following lines (both send methods) for the existing implentations to work.
+     *
+     */
+
+    void send(T msg);
+
+    /**
+     * Sends a message that was already encoded, for example once for all the subscribers of a channel.
+     * The parts are written back to back as a single message and are not interleaved with other messages.
+     * The handler consumes the buffers (moves their positions), but the bytes behind them may be shared with
+     * other connections - callers pass {@link ByteBuffer#duplicate()} views and implementations never write to them.
+     *
+     * @param parts the encoded message, in order
+     */
+    void sendEncoded(ByteBuffer... parts);
+
+    /**
+     * Sends a heart-beat: a single end of line between frames, skipped by the receiver.
+     */
+    void sendHeartbeat();
+
+    /**
+     * @return the time (System.currentTimeMillis()) bytes last arrived from the client, or the connection was opened
+     */
+    long getLastReadTime();
+
+    /**
+     * @return the time (System.currentTimeMillis()) bytes were last sent to the client, or the connection was opened
+     */
+    long getLastWriteTime();
+
+    /**
+     * @return true while the bytes waiting to be written are above the high watermark of the connection and did not
+     *         drain to its low watermark yet, a sender that can wait should
+     */
+    default boolean isBackedUp() {
+        return false;
+    }
+
+}
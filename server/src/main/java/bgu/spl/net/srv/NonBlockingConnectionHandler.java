@@ -2,34 +2,84 @@ package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Histogram;
+import bgu.spl.net.srv.metrics.Metrics;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
+    private static final int MAX_GATHERED_BUFFERS = 64; //buffers handed to a single gathering write
     private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final byte[] HEARTBEAT = {'\n'};
+
+    //shared by all the connections, see Metrics
+    private static final Histogram DECODE_LATENCY = Metrics.getInstance().latency("frame.decode.nanos");
+    private static final Histogram PROCESS_LATENCY = Metrics.getInstance().latency("frame.process.nanos");
+    private static final Histogram READ_LATENCY = Metrics.getInstance().latency("read.total.nanos");
+    private static final Histogram QUEUED_BYTES = Metrics.getInstance().histogram("write.queue.bytes");
+    private static final Counter QUEUED_WRITES = Metrics.getInstance().counter("write.queued");
+    private static final Counter DROPPED_MESSAGES = Metrics.getInstance().counter("write.dropped.messages");
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final SelectorLoop loop;
+    private final WriteQueueLimits limits;
+    private final ActorThreadPool pool;
+    private final ActorMailbox mailbox = new ActorMailbox();
+    //runs the continuations of an asynchronous processing in the mailbox, in turn with connectionClosed
+    private final Executor serial;
+
+    //touched only by the tasks of the mailbox: while a message is processed asynchronously the connection is
+    //suspended and the messages that arrive meanwhile wait in the inbox, without holding a pool thread
+    private final Queue<T> inbox = new ArrayDeque<>();
+    private boolean suspended = false;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile long lastReadTime = System.currentTimeMillis();
+    private volatile long lastWriteTime = lastReadTime;
+
+    //everything below is guarded by writeLock: any thread may write directly to the socket while
+    //nothing is pending, otherwise the bytes wait in the queue for the selector thread
+    private final Object writeLock = new Object();
+    private final Queue<PendingMessage> writeQueue = new ArrayDeque<>();
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    private boolean writeInterest = false; //OP_WRITE was requested and continueWrite did not drain the queue yet
+    private boolean backedUp = false; //the queue went above the high watermark and did not drain to the low one yet
+    private volatile long queuedBytes = 0;
+    private volatile long droppedMessages = 0;
+    private volatile long droppedBytes = 0;
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            SelectorLoop loop,
+            WriteQueueLimits limits,
+            ActorThreadPool pool) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
+        this.limits = limits;
+        this.pool = pool;
+        this.serial = task -> pool.submit(mailbox, task);
     }
 
     public Runnable continueRead() {
@@ -38,24 +88,34 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         boolean success = false;
         try {
             success = chan.read(buf) != -1;
+        } catch (ClosedChannelException ex) {
+            //closed by another thread (the protocol, a failed write or the idle reaper) - nothing to report
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
         if (success) {
+            lastReadTime = System.currentTimeMillis();
+            long readAt = System.nanoTime();
             buf.flip();
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            T response = protocol.process(nextMessage);
-                            if (response != null) {
-                                writeQueue.add(ByteBuffer.wrap(encdec.encode(response)));
-                                reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                            }
+                    long decodeStart = System.nanoTime();
+                    List<T> messages = encdec.decode(buf);
+                    DECODE_LATENCY.recordSince(decodeStart);
+                    for (T nextMessage : messages) {
+                        if (suspended) {
+                            inbox.add(nextMessage);
+                        } else {
+                            process(nextMessage);
                         }
                     }
+                    if (!suspended && protocol.shouldTerminate()) {
+                        closeWhenFlushed();
+                    }
+                    //from the read, through the wait in the pool, decoding and processing, until every
+                    //response and message the read caused is written or queued
+                    READ_LATENCY.recordSince(readAt);
                 } finally {
                     releaseBuffer(buf);
                 }
@@ -68,41 +128,172 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     }
 
+    /**
+     * Processes one message, runs in the mailbox. A message that does not complete at once suspends the
+     * connection until its response is ready - the rest of its messages are processed by {@link #resume}.
+     */
+    private void process(T message) {
+        long start = System.nanoTime();
+        CompletableFuture<T> response = protocol.processAsync(message, serial).toCompletableFuture();
+        if (response.isDone()) {
+            respond(response);
+            PROCESS_LATENCY.recordSince(start);
+        } else {
+            suspended = true;
+            response.whenComplete((result, error) -> pool.submit(mailbox, () -> resume(response, start)));
+        }
+    }
+
+    private void resume(CompletableFuture<T> response, long start) {
+        suspended = false;
+        respond(response);
+        PROCESS_LATENCY.recordSince(start);
+        while (!suspended && !inbox.isEmpty()) {
+            process(inbox.remove());
+        }
+        if (!suspended && protocol.shouldTerminate()) {
+            closeWhenFlushed();
+        }
+    }
+
+    private void respond(CompletableFuture<T> done) {
+        T response;
+        try {
+            response = done.join();
+        } catch (RuntimeException ex) {
+            //the protocol could not answer, the client would wait forever
+            ex.printStackTrace();
+            inbox.clear();
+            close();
+            return;
+        }
+        if (response != null) {
+            write(ByteBuffer.wrap(encdec.encode(response)));
+        }
+    }
+
     public void close() {
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        if (closed.compareAndSet(false, true)) {
+            //in the mailbox, so it never runs while a message of this connection is processed
+            pool.submit(mailbox, protocol::connectionClosed);
+        }
     }
 
     public boolean isClosed() {
         return !chan.isOpen();
     }
 
+    /**
+     * @return the mailbox of this connection in the actor thread pool
+     */
+    public ActorMailbox getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Drains the backlog, called by the selector thread when the socket became writable.
+     */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        synchronized (writeLock) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
+                while (!writeQueue.isEmpty()) {
+                    int count = 0;
+                    long gatheredBytes = 0;
+                    gather:
+                    for (PendingMessage message : writeQueue) {
+                        for (ByteBuffer part : message.parts) {
+                            if (count == gathered.length) break gather;
+                            if (part.hasRemaining()) {
+                                gathered[count++] = part;
+                                gatheredBytes += part.remaining();
+                            }
+                        }
+                    }
+                    long written = chan.write(gathered, 0, count);
+                    Arrays.fill(gathered, 0, count, null);
+                    queuedBytes -= written;
+
+                    while (!writeQueue.isEmpty() && writeQueue.peek().remaining() == 0) {
+                        writeQueue.remove();
+                    }
+                    if (written < gatheredBytes) {
+                        break; //the socket is full - wait for the next OP_WRITE
+                    }
                 }
             } catch (IOException ex) {
                 ex.printStackTrace();
+                writeQueue.clear();
+                queuedBytes = 0;
                 close();
+                return;
+            }
+
+            if (backedUp && queuedBytes <= limits.getLowWatermark()) {
+                backedUp = false;
             }
+            if (writeQueue.isEmpty()) {
+                writeInterest = false;
+                if (protocol.shouldTerminate()) {
+                    close();
+                    return;
+                }
+            }
+            loop.updateInterestedOps(chan, interestOps());
         }
+    }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+    /**
+     * @return the bytes waiting to be written to the socket
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return the messages waiting (fully or partially) to be written to the socket
+     */
+    public int getQueuedMessages() {
+        synchronized (writeLock) {
+            return writeQueue.size();
         }
     }
 
-    private static ByteBuffer leaseBuffer() {
+    /**
+     * @return the messages discarded because the write queue overflowed
+     */
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * @return the bytes discarded because the write queue overflowed
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    @Override
+    public boolean isBackedUp() {
+        synchronized (writeLock) {
+            return backedUp;
+        }
+    }
+
+    /**
+     * @return true while reading from this connection is paused because its own write queue is backed up
+     */
+    public boolean isReadPaused() {
+        synchronized (writeLock) {
+            return readPaused();
+        }
+    }
+
+    /*package*/ static ByteBuffer leaseBuffer() {
         ByteBuffer buff = BUFFER_POOL.poll();
         if (buff == null) {
             return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
@@ -112,7 +303,7 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         return buff;
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
+    /*package*/ static void releaseBuffer(ByteBuffer buff) {
         BUFFER_POOL.add(buff);
     }
 
@@ -120,11 +311,185 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         public void send(T msg) {
      if (msg != null) {
         try {
-            writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            write(ByteBuffer.wrap(encdec.encode(msg)));
         } catch (Exception e) {
-            
+
+        }
+        }
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer... parts) {
+        write(parts);
+    }
+
+    @Override
+    public void sendHeartbeat() {
+        write(ByteBuffer.wrap(HEARTBEAT));
+    }
+
+    @Override
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    @Override
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    /**
+     * Writes the message right away from the calling thread when nothing is pending, and queues whatever the
+     * socket did not take. OP_WRITE (and with it a selector wakeup) is only requested for a partial write.
+     */
+    private void write(ByteBuffer... parts) {
+        synchronized (writeLock) {
+            if (!chan.isOpen()) {
+                return;
+            }
+            lastWriteTime = System.currentTimeMillis();
+
+            long size = remaining(parts);
+            if (writeQueue.isEmpty() && !writeInterest) {
+                try {
+                    chan.write(parts);
+                } catch (IOException ex) {
+                    close();
+                    return;
+                }
+                long left = remaining(parts);
+                if (left == 0) {
+                    return;
+                }
+                //the message is already on its way, cutting it would corrupt the stream - keep the rest whatever its size
+                enqueue(new PendingMessage(parts, size), left);
+            } else {
+                if (queuedBytes + size > limits.getMaxQueuedBytes() && !makeRoom(size)) {
+                    return;
+                }
+                enqueue(new PendingMessage(parts, size), size);
+            }
+
+            if (!writeInterest) {
+                writeInterest = true;
+                loop.updateInterestedOps(chan, interestOps());
+            }
+        }
+    }
+
+    private void enqueue(PendingMessage message, long bytes) {
+        writeQueue.add(message);
+        queuedBytes += bytes;
+        QUEUED_WRITES.increment();
+        QUEUED_BYTES.record(queuedBytes);
+        if (!backedUp && queuedBytes > limits.getHighWatermark()) {
+            backedUp = true;
+            if (writeInterest && limits.isPauseReadsWhenBackedUp()) {
+                loop.updateInterestedOps(chan, interestOps());
+            }
+        }
+    }
+
+    /**
+     * Applies the overflow policy for an incoming message of the given size.
+     *
+     * @return true if the incoming message should still be queued
+     */
+    private boolean makeRoom(long size) {
+        switch (limits.getOverflowPolicy()) {
+            case DROP_NEWEST:
+                dropped(1, size);
+                return false;
+
+            case DROP_OLDEST:
+                long startedBytes = 0;
+                for (PendingMessage message : writeQueue) {
+                    if (message.started()) {
+                        startedBytes += message.remaining(); //queuedBytes counts what is left of it
+                    }
+                }
+                if (startedBytes + size > limits.getMaxQueuedBytes()) {
+                    //even an empty queue would not fit it - the new message goes, the queue stays
+                    dropped(1, size);
+                    return false;
+                }
+                Iterator<PendingMessage> it = writeQueue.iterator();
+                while (queuedBytes + size > limits.getMaxQueuedBytes() && it.hasNext()) {
+                    PendingMessage message = it.next();
+                    if (!message.started()) {
+                        it.remove();
+                        queuedBytes -= message.bytes;
+                        dropped(1, message.bytes);
+                    }
+                }
+                return true;
+
+            default: //ERROR_AND_DISCONNECT
+                boolean inTheMiddleOfAMessage = !writeQueue.isEmpty() && writeQueue.peek().started();
+                dropped(writeQueue.size() + 1, queuedBytes + size);
+                writeQueue.clear();
+                queuedBytes = 0;
+                byte[] notice = limits.getOverflowNotice();
+                if (notice != null && !inTheMiddleOfAMessage) {
+                    try {
+                        chan.write(ByteBuffer.wrap(notice)); //best effort - the peer is not reading anyway
+                    } catch (IOException ex) {
+                        //the connection is closed right after
+                    }
+                }
+                close();
+                return false;
         }
+    }
+
+    private void dropped(long messages, long bytes) {
+        droppedMessages += messages;
+        droppedBytes += bytes;
+        DROPPED_MESSAGES.add(messages);
+    }
+
+    private boolean readPaused() {
+        return backedUp && limits.isPauseReadsWhenBackedUp();
+    }
+
+    private int interestOps() {
+        return (readPaused() ? 0 : SelectionKey.OP_READ) | (writeInterest ? SelectionKey.OP_WRITE : 0);
+    }
+
+    private static long remaining(ByteBuffer[] parts) {
+        long remaining = 0;
+        for (ByteBuffer part : parts) {
+            remaining += part.remaining();
+        }
+        return remaining;
+    }
+
+    private void closeWhenFlushed() {
+        synchronized (writeLock) {
+            if (writeQueue.isEmpty()) {
+                close();
+            } //otherwise continueWrite closes once the queue is drained
+        }
+    }
+
+    /**
+     * One message waiting in the write queue, made of one or more encoded parts.
+     */
+    private static final class PendingMessage {
+        final ByteBuffer[] parts;
+        final long bytes; //the size of the whole message
+
+        PendingMessage(ByteBuffer[] parts, long bytes) {
+            this.parts = parts;
+            this.bytes = bytes;
+        }
+
+        long remaining() {
+            return NonBlockingConnectionHandler.remaining(parts);
+        }
+
+        boolean started() {
+            return remaining() < bytes;
         }
     }
 }
@@ -3,15 +3,14 @@ package bgu.spl.net.srv;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.impl.stomp.ConnectionsImpl;
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Metrics;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -20,133 +19,170 @@ public class Reactor<T> implements Server<T> {
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
-    private Selector selector;
+    private final SelectorLoop[] loops;
+    private final WriteQueueLimits writeQueueLimits;
     private ConnectionsImpl<T>  connections;
-    private int connectionIdCounter = 0;
+    private final TimerWheel timer; // heart-beats and connection timeouts
+    private int connectionIdCounter = 0; // only touched by the accepting thread
+    private int nextLoop = 0;
+    private volatile ServerSocketChannel serverSock;
+    private final Counter accepted = Metrics.getInstance().counter("connections.accepted");
 
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, 1, port, WriteQueueLimits.UNBOUNDED, protocolFactory, readerFactory);
+    }
+
+    /**
+     * @param numSelectors number of selector loops. With a single loop the serving thread accepts and does all the
+     *                     I/O itself (the classic reactor), with more the serving thread only accepts and spreads the
+     *                     new channels between the loops in a round robin fashion.
+     */
+    public Reactor(
+            int numThreads,
+            int numSelectors,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, numSelectors, port, WriteQueueLimits.UNBOUNDED, protocolFactory, readerFactory);
+    }
 
+    /**
+     * @param writeQueueLimits bounds of the write queue of every connection
+     */
     public Reactor(
             int numThreads,
+            int numSelectors,
             int port,
+            WriteQueueLimits writeQueueLimits,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
+        if (numSelectors < 1) {
+            throw new IllegalArgumentException("a reactor needs at least one selector, got " + numSelectors);
+        }
         this.pool = new ActorThreadPool(numThreads);
+        this.loops = new SelectorLoop[numSelectors];
+        this.writeQueueLimits = writeQueueLimits;
         this.port = port;
         this.protocolFactory = protocolFactory;
-        this.connections = new ConnectionsImpl<>();
+        this.timer = new TimerWheel(BaseServer.TIMER_TICK_MILLIS, BaseServer.TIMER_WHEEL_SIZE, "connection-timer");
+        this.connections = new ConnectionsImpl<>(timer);
         this.readerFactory = readerFactory;
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("actor.turns", pool::getTurns);
+        metrics.gauge("actor.tasks", pool::getExecutedTasks);
+        metrics.gauge("timer.pending", timer::getPending);
     }
 
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
-        try (
-            Selector selector = Selector.open();
-            ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
-            this.selector = selector; //just to be able to close
+            this.serverSock = serverSock; //just to be able to close
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new SelectorLoop(this, pool);
+            }
 
             serverSock.bind(new InetSocketAddress(port));
-            serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
-			System.out.println("Server started");
-
-            while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
 
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
+            if (loops.length == 1) {
+                serverSock.configureBlocking(false);
+                loops[0].registerAcceptor(serverSock);
+                System.out.println("Server started");
+                loops[0].run();
+            } else {
+                Thread[] selectorThreads = startSelectorThreads();
+                System.out.println("Server started");
+                acceptLoop(serverSock);
+                for (Thread selectorThread : selectorThreads) {
+                    selectorThread.interrupt();
                 }
-
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
-
             }
 
-        } catch (ClosedSelectorException ex) {
+        } catch (AsynchronousCloseException ex) {
             //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
+        } finally {
+            timer.close();
+            closeLoops();
         }
 
         System.out.println("server closed!!!");
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
+    private Thread[] startSelectorThreads() {
+        Thread[] threads = new Thread[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            threads[i] = new Thread(loops[i], "reactor-selector-" + i);
+            threads[i].start();
         }
+        return threads;
     }
 
+    private void acceptLoop(ServerSocketChannel serverSock) throws IOException {
+        while (!Thread.currentThread().isInterrupted()) {
+            SocketChannel clientChan = serverSock.accept();
+            SelectorLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            accept(clientChan, loop);
+        }
+    }
 
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+    /*package*/ void handleAccept(ServerSocketChannel serverChan, SelectorLoop loop) throws IOException {
         SocketChannel clientChan = serverChan.accept();
+        if (clientChan != null) {
+            accept(clientChan, loop);
+        }
+    }
+
+    private void accept(SocketChannel clientChan, SelectorLoop loop) throws IOException {
         clientChan.configureBlocking(false);
         MessageEncoderDecoder<T> encode = readerFactory.get();
         MessagingProtocol<T> protocol = protocolFactory.get();
            if (protocol instanceof bgu.spl.net.api.StompMessagingProtocol) {
                     // כאן אנחנו "מכריחים" את הג'אווה להתייחס אליו כ-StompMessagingProtocol
                     ((bgu.spl.net.api.StompMessagingProtocol<T>) protocol).start(connectionIdCounter, connections);
-                }           
+                }
 
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 encode,
                 protocol,
                 clientChan,
-                this);
+                loop,
+                writeQueueLimits,
+                pool);
         connections.addConnection(connectionIdCounter, handler);
         connectionIdCounter++;
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
-
-
+        accepted.increment();
+        loop.register(clientChan, handler);
     }
 
-
-
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
+    private void closeLoops() {
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                try {
+                    loop.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
             }
         }
-
-	    if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
-        }
-    }
-
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
-        }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        if (serverSock != null) {
+            serverSock.close();
+        }
+        closeLoops();
     }
 
 }
@@ -0,0 +1,135 @@
+package bgu.spl.net.srv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single selector thread of the reactor: owns one {@link Selector} and the queue of tasks that must run on it.
+ * In the classic reactor there is exactly one loop which also accepts new clients, in the multi-reactor mode
+ * every loop only serves the connections the acceptor handed to it.
+ */
+class SelectorLoop implements Runnable, Closeable {
+
+    private final Reactor<?> reactor;
+    private final ActorThreadPool pool;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false); //a wakeup was issued for queued tasks
+    private volatile Thread selectorThread;
+
+    SelectorLoop(Reactor<?> reactor, ActorThreadPool pool) throws IOException {
+        this.reactor = reactor;
+        this.pool = pool;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                wakeupPending.set(false); //tasks queued from now on need a new wakeup
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        reactor.handleAccept((ServerSocketChannel) key.channel(), this);
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+            }
+
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /*package*/ void registerAcceptor(ServerSocketChannel serverChan) throws ClosedChannelException {
+        serverChan.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Registers a freshly accepted client with this loop. May be called from any thread.
+     */
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<?> handler) {
+        runOnSelectorThread(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+            } catch (ClosedChannelException ex) {
+                handler.close();
+            }
+        });
+    }
+
+    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
+        runOnSelectorThread(() -> {
+            SelectionKey key = chan.keyFor(selector);
+            if (key != null && key.isValid()) {
+                try {
+                    key.interestOps(ops);
+                } catch (CancelledKeyException ex) {
+                    //the connection was closed in the meantime
+                }
+            }
+        });
+    }
+
+    private void runOnSelectorThread(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            //one wakeup serves every task queued until the selector thread picks them up
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        NonBlockingConnectionHandler<?> handler = (NonBlockingConnectionHandler<?>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.getMailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+}
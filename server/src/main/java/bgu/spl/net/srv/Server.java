@@ -1,54 +1,165 @@
-package bgu.spl.net.srv;
-
-import bgu.spl.net.api.MessageEncoderDecoder;
-import bgu.spl.net.api.MessagingProtocol;
-import java.io.Closeable;
-import java.util.function.Supplier;
-
-public interface Server<T> extends Closeable {
-
-    /**
-     * The main loop of the server, Starts listening and handling new clients.
-     */
-    void serve();
-
-    /**
-     *This function returns a new instance of a thread per client pattern server
-     * @param port The port for the server socket
-     * @param protocolFactory A factory that creats new MessagingProtocols
-     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
-     * @param <T> The Message Object for the protocol
-     * @return A new Thread per client server
-     */
-    public static <T> Server<T>  threadPerClient(
-            int port,
-            Supplier<MessagingProtocol<T> > protocolFactory,
-            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
-
-        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
-            @Override
-            protected void execute(BlockingConnectionHandler<T>  handler) {
-                new Thread(handler).start();
-            }
-        };
-
-    }
-
-    /**
-     * This function returns a new instance of a reactor pattern server
-     * @param nthreads Number of threads available for protocol processing
-     * @param port The port for the server socket
-     * @param protocolFactory A factory that creats new MessagingProtocols
-     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
-     * @param <T> The Message Object for the protocol
-     * @return A new reactor server
-     */
-    public static <T> Server<T> reactor(
-            int nthreads,
-            int port,
-            Supplier<MessagingProtocol<T>> protocolFactory,
-            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
-        return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
-    }
-
-}
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.MessagingProtocol;
+import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+public interface Server<T> extends Closeable {
+
+    /**
+     * The main loop of the server, Starts listening and handling new clients.
+     */
+    void serve();
+
+    /**
+     *This function returns a new instance of a thread per client pattern server
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new Thread per client server
+     */
+    public static <T> Server<T>  threadPerClient(
+            int port,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                new Thread(handler).start();
+            }
+        };
+
+    }
+
+    /**
+     * This function returns a new instance of a thread per client pattern server with bounded outbound queues:
+     * the frames sent to a client are written by a writer task and not by the sending thread, so a client that
+     * does not read holds up no one else
+     * @param port The port for the server socket
+     * @param writeQueueLimits The bounds of the outbound queue of every connection
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new Thread per client server
+     */
+    public static <T> Server<T>  threadPerClient(
+            int port,
+            WriteQueueLimits writeQueueLimits,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory,
+                BlockingConnectionHandler.DEFAULT_BUFFER_SIZE, writeQueueLimits) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                new Thread(handler).start();
+            }
+        };
+
+    }
+
+    /**
+     * This function returns a new instance of a thread per client pattern server that runs every client on a
+     * virtual thread (Java 21 and later): the same blocking handlers, but an idle client costs a few KB of heap
+     * instead of the stack of a platform thread, so the server holds far more connections.
+     * @param carriers The number of carrier threads the virtual threads run on, 0 for one per core.
+     *                 Ignored if the virtual threads of the JVM already started or the JVM got
+     *                 -Djdk.virtualThreadScheduler.parallelism
+     * @param port The port for the server socket
+     * @param writeQueueLimits The bounds of the outbound queue of every connection
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int carriers,
+            int port,
+            WriteQueueLimits writeQueueLimits,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        if (carriers > 0 && System.getProperty(VirtualThreads.CARRIERS_PROPERTY) == null) {
+            System.setProperty(VirtualThreads.CARRIERS_PROPERTY, Integer.toString(carriers));
+        }
+        ThreadFactory threads = VirtualThreads.factory("stomp-client-");
+        ThreadFactory writers = VirtualThreads.factory("stomp-writer-");
+        // smaller buffers than the platform threads': with many connections the buffers are most of the memory
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory,
+                BaseServer.VIRTUAL_THREAD_BUFFER_SIZE, writeQueueLimits) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                threads.newThread(handler).start();
+            }
+
+            @Override
+            protected void executeWrite(Runnable writer) {
+                writers.newThread(writer).start(); // like the readers, one virtual thread per run of the writer
+            }
+        };
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server
+     * @param nthreads Number of threads available for protocol processing
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
+    }
+
+    /**
+     * This function returns a new instance of a multi reactor pattern server:
+     * one acceptor thread that spreads the accepted clients between several selector threads
+     * @param nthreads Number of threads available for protocol processing
+     * @param nselectors Number of selector threads doing the network I/O
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new multi reactor server
+     */
+    public static <T> Server<T> multiReactor(
+            int nthreads,
+            int nselectors,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nselectors, port, protocolFactory, encoderDecoderFactory);
+    }
+
+    /**
+     * This function returns a new instance of a (multi) reactor pattern server with bounded write queues
+     * @param nthreads Number of threads available for protocol processing
+     * @param nselectors Number of selector threads doing the network I/O, 1 for the classic reactor
+     * @param port The port for the server socket
+     * @param writeQueueLimits The bounds of the write queue of every connection
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> multiReactor(
+            int nthreads,
+            int nselectors,
+            int port,
+            WriteQueueLimits writeQueueLimits,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nselectors, port, writeQueueLimits, protocolFactory, encoderDecoderFactory);
+    }
+
+}
@@ -0,0 +1,192 @@
+package bgu.spl.net.srv;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel: a ring of buckets, one per tick, that a single thread walks one bucket per tick.
+ * <p>
+ * A timeout goes to the bucket of its deadline, with the number of full turns of the wheel still to wait, so a
+ * tick only visits the timeouts of one bucket - the ones that expire, plus the few that wait for a later turn or
+ * were cancelled - and never all of them. Scheduling and cancelling are O(1) and never block: new timeouts are
+ * handed to the timer thread through a queue and cancelled ones are dropped when their bucket comes up.
+ * <p>
+ * Timeouts fire up to one tick late. They run on the timer thread, one after the other, so they must be short and
+ * must not block.
+ */
+public class TimerWheel implements Closeable {
+
+    /**
+     * A scheduled task.
+     */
+    public interface Timeout {
+        /**
+         * @return true if the task was cancelled before it ran
+         */
+        boolean cancel();
+    }
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Entry[] buckets; // the head of the list of every bucket, touched only by the timer thread
+    private final int mask;
+    private final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long start = System.nanoTime();
+    private long tick = 0; // the next tick to process, touched only by the timer thread
+    private volatile boolean closed = false;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile long expired = 0;
+
+    /**
+     * @param tickMillis  the resolution of the timer
+     * @param wheelSize   the number of buckets, rounded up to a power of two. Timeouts shorter than
+     *                    {@code tickMillis * wheelSize} expire on the first turn of the wheel
+     * @param threadName  the name of the timer thread
+     */
+    public TimerWheel(long tickMillis, int wheelSize, String threadName) {
+        if (tickMillis < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("tick and wheel size must be positive");
+        }
+        int size = Integer.highestOneBit(wheelSize - 1 == 0 ? 1 : (wheelSize - 1) << 1);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Entry[size];
+        this.mask = size - 1;
+        this.thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task once, {@code delayMillis} from now.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Entry entry = new Entry(task, System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        if (closed) {
+            entry.state.set(CANCELLED); // never runs
+        } else {
+            pending.incrementAndGet();
+            added.add(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the timeouts that are scheduled and did not run or get cancelled yet
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the timeouts that ran so far
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (!closed) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - start);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            transferAdded();
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Entry entry;
+        while ((entry = added.poll()) != null) {
+            if (entry.state.get() == CANCELLED) {
+                continue;
+            }
+            // a deadline that already passed goes to the current tick
+            long ticks = Math.max(entry.deadline / tickNanos, tick);
+            entry.rounds = (ticks - tick) / buckets.length;
+            int bucket = (int) (ticks & mask);
+            entry.next = buckets[bucket];
+            buckets[bucket] = entry;
+        }
+    }
+
+    private void expire(int bucket) {
+        Entry previous = null;
+        Entry entry = buckets[bucket];
+        while (entry != null) {
+            Entry next = entry.next;
+            boolean remove;
+            if (entry.state.get() == CANCELLED) {
+                remove = true;
+            } else if (entry.rounds > 0) {
+                entry.rounds--;
+                remove = false;
+            } else {
+                remove = true;
+                if (entry.state.compareAndSet(WAITING, EXPIRED)) {
+                    pending.decrementAndGet();
+                    expired++;
+                    try {
+                        entry.task.run();
+                    } catch (RuntimeException ex) {
+                        ex.printStackTrace(); // one failing task must not stop the timer
+                    }
+                }
+            }
+            if (remove) {
+                if (previous == null) {
+                    buckets[bucket] = next;
+                } else {
+                    previous.next = next;
+                }
+                entry.next = null;
+            } else {
+                previous = entry;
+            }
+            entry = next;
+        }
+    }
+
+    private final class Entry implements Timeout {
+        final Runnable task;
+        final long deadline; // nanos since the start of the wheel
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        long rounds; // full turns of the wheel left, touched only by the timer thread
+        Entry next;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
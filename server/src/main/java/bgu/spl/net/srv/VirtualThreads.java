@@ -0,0 +1,40 @@
+package bgu.spl.net.srv;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads (Java 21) for a server built for Java 8: the thread factory is looked up by reflection, so the
+ * same classes run everywhere and only the virtual thread per client server needs a Java 21 runtime.
+ * <p>
+ * Virtual threads run on a small pool of carrier threads, one per core unless the system property
+ * {@value #CARRIERS_PROPERTY} says otherwise. A virtual thread that blocks on I/O or on a
+ * {@link java.util.concurrent.locks.Lock} releases its carrier, but one that blocks inside a {@code synchronized}
+ * block keeps it (it is pinned), so code that runs on them locks with {@link java.util.concurrent.locks.ReentrantLock}
+ * around anything that may block.
+ */
+final class VirtualThreads {
+
+    static final String CARRIERS_PROPERTY = "jdk.virtualThreadScheduler.parallelism";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Equivalent to {@code Thread.ofVirtual().name(prefix, 0).factory()}.
+     * @throws UnsupportedOperationException if the runtime has no virtual threads (before Java 21, or 19-20
+     *                                       without --enable-preview)
+     */
+    static ThreadFactory factory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new UnsupportedOperationException("virtual threads need Java 21 or later, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package bgu.spl.net.srv;
+
+/**
+ * Bounds the bytes a connection may have waiting to be written to its socket.
+ * <p>
+ * The watermarks work as a hysteresis: once the queued bytes rise above the high watermark the connection is
+ * backed up (and, if configured, its own input is no longer read), and it stays backed up until the queue drains
+ * back to the low watermark. A message that would push the queue beyond {@code maxQueuedBytes} is an overflow and
+ * is handled according to the {@link OverflowPolicy}.
+ */
+public class WriteQueueLimits {
+
+    public enum OverflowPolicy {
+        /** the message that does not fit is discarded */
+        DROP_NEWEST,
+        /** queued messages that were not started yet are discarded, oldest first, to make room */
+        DROP_OLDEST,
+        /** the queue is discarded, the overflow notice is sent if possible and the connection is closed */
+        ERROR_AND_DISCONNECT
+    }
+
+    public static final WriteQueueLimits UNBOUNDED = new WriteQueueLimits(
+            Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST, false, null);
+
+    private final long lowWatermark;
+    private final long highWatermark;
+    private final long maxQueuedBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final boolean pauseReadsWhenBackedUp;
+    private final byte[] overflowNotice;
+
+    /**
+     * @param lowWatermark           a backed up connection is released once its queue drains to this size
+     * @param highWatermark          a connection whose queue grows above this size is backed up
+     * @param maxQueuedBytes         hard bound of the queue, going beyond it is an overflow
+     * @param overflowPolicy         what to do on overflow
+     * @param pauseReadsWhenBackedUp stop reading from a connection while its own queue is backed up
+     * @param overflowNotice         encoded message sent before disconnecting on
+     *                               {@link OverflowPolicy#ERROR_AND_DISCONNECT}, may be null
+     */
+    public WriteQueueLimits(
+            long lowWatermark,
+            long highWatermark,
+            long maxQueuedBytes,
+            OverflowPolicy overflowPolicy,
+            boolean pauseReadsWhenBackedUp,
+            byte[] overflowNotice) {
+        if (lowWatermark > highWatermark || highWatermark > maxQueuedBytes) {
+            throw new IllegalArgumentException("expected lowWatermark <= highWatermark <= maxQueuedBytes");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.pauseReadsWhenBackedUp = pauseReadsWhenBackedUp;
+        this.overflowNotice = overflowNotice;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public boolean isPauseReadsWhenBackedUp() {
+        return pauseReadsWhenBackedUp;
+    }
+
+    public byte[] getOverflowNotice() {
+        return overflowNotice;
+    }
+}
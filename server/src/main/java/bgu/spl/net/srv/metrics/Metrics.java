@@ -0,0 +1,166 @@
+package bgu.spl.net.srv.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the server, by name: {@link Counter}s, {@link Histogram}s and gauges (values read when they are
+ * reported, e.g. a queue size).
+ * <p>
+ * Looking a metric up by name is a map lookup, so code on a hot path looks it up once and keeps it in a field.
+ * Recording is lock free. The metrics are read with {@link #print()} (the {@code stats} command of the server) and
+ * over JMX, once {@link #registerMBean()} was called, as attributes of {@value #OBJECT_NAME}.
+ */
+public final class Metrics {
+
+    public static final String OBJECT_NAME = "bgu.spl.net:type=Metrics";
+
+    // a labeled family (e.g. one histogram per destination) never has more members than this, the rest share one
+    private static final int MAX_LABELS = 256;
+    private static final String OTHER_LABEL = "other";
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> labels = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    public Counter counter(String name) {
+        return get(name, Counter.class, Counter::new);
+    }
+
+    /**
+     * @return the histogram of a value that is not a time
+     */
+    public Histogram histogram(String name) {
+        return get(name, Histogram.class, () -> new Histogram(false));
+    }
+
+    /**
+     * @return the histogram of a time in nanoseconds
+     */
+    public Histogram latency(String name) {
+        return get(name, Histogram.class, () -> new Histogram(true));
+    }
+
+    /**
+     * @return the histogram of one member of a family, e.g. of one destination: {@code name{label}}. Once the
+     *         family has {@value #MAX_LABELS} members the new labels share {@code name{other}}
+     */
+    public Histogram histogram(String name, String label) {
+        String labeled = name + "{" + label + "}";
+        Object metric = metrics.get(labeled);
+        if (metric == null) {
+            AtomicInteger members = labels.computeIfAbsent(name, family -> new AtomicInteger());
+            if (members.incrementAndGet() > MAX_LABELS) {
+                members.decrementAndGet();
+                labeled = name + "{" + OTHER_LABEL + "}";
+            } else if (metrics.putIfAbsent(labeled, new Histogram(false)) != null) {
+                members.decrementAndGet(); // created by another thread meanwhile
+            }
+        }
+        return get(labeled, Histogram.class, () -> new Histogram(false));
+    }
+
+    /**
+     * Removes the member of a family, e.g. of a destination that is gone, making room for a new one. Nothing
+     * happens if the label shares {@code name{other}}.
+     */
+    public void remove(String name, String label) {
+        if (metrics.remove(name + "{" + label + "}") != null) {
+            labels.get(name).decrementAndGet();
+        }
+    }
+
+    /**
+     * Reports the value of the supplier under the name, instead of whatever was reported under it before.
+     */
+    public void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    /**
+     * @return a copy of all the metrics by name: {@link Counter}, {@link Histogram} or {@link LongSupplier}
+     */
+    public Map<String, Object> getAll() {
+        return new ConcurrentSkipListMap<>(metrics);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. Registering twice is harmless.
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MetricsMBean(this), name);
+        }
+    }
+
+    public void print() {
+        System.out.print(format());
+    }
+
+    /**
+     * @return every metric on a line, histograms as count, mean, percentiles and max (times in milliseconds)
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        out.append("=== METRICS ===\n");
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            Object value = metric.getValue();
+            out.append(String.format("%-40s ", metric.getKey()));
+            if (value instanceof Counter) {
+                out.append(((Counter) value).get());
+            } else if (value instanceof LongSupplier) {
+                out.append(((LongSupplier) value).getAsLong());
+            } else {
+                Histogram histogram = (Histogram) value;
+                Histogram.Snapshot snapshot = histogram.snapshot();
+                out.append(String.format("count=%d mean=%s p50=%s p90=%s p99=%s p99.9=%s max=%s",
+                        snapshot.getCount(),
+                        format(histogram, snapshot.getMean()),
+                        format(histogram, snapshot.getPercentile(50)),
+                        format(histogram, snapshot.getPercentile(90)),
+                        format(histogram, snapshot.getPercentile(99)),
+                        format(histogram, snapshot.getPercentile(99.9)),
+                        format(histogram, snapshot.getMax())));
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String format(Histogram histogram, double value) {
+        if (histogram.isNanos()) {
+            return String.format("%.3fms", value / 1e6);
+        }
+        return value == Math.rint(value) ? Long.toString((long) value) : String.format("%.2f", value);
+    }
+
+    private <M> M get(String name, Class<M> type, Supplier<M> create) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            metric = metrics.computeIfAbsent(name, n -> create.get());
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is a " + metric.getClass().getSimpleName()
+                    + ", not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+}
@@ -0,0 +1,114 @@
+package bgu.spl.net.srv.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the {@link Metrics} over JMX, read only. Counters and gauges are attributes of their own name, every
+ * histogram is the attributes {@code <name>.count}, {@code .mean}, {@code .p50}, {@code .p90}, {@code .p99},
+ * {@code .p999} and {@code .max} (in nanoseconds for times). The {@code format} operation returns the text of the
+ * {@code stats} command.
+ * <p>
+ * The attributes are listed from the metrics that exist when the MBean info is asked for, so metrics created
+ * later appear when a JMX client reconnects.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private static final String[] HISTOGRAM_FIELDS = { "count", "mean", "p50", "p90", "p99", "p999", "max" };
+
+    private final Metrics metrics;
+
+    MetricsMBean(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Map<String, Object> all = metrics.getAll();
+        Object metric = all.get(attribute);
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        }
+        if (metric instanceof LongSupplier) {
+            return ((LongSupplier) metric).getAsLong();
+        }
+        int dot = attribute.lastIndexOf('.');
+        if (dot != -1 && all.get(attribute.substring(0, dot)) instanceof Histogram) {
+            Histogram.Snapshot snapshot = ((Histogram) all.get(attribute.substring(0, dot))).snapshot();
+            switch (attribute.substring(dot + 1)) {
+                case "count": return snapshot.getCount();
+                case "mean": return Math.round(snapshot.getMean());
+                case "p50": return snapshot.getPercentile(50);
+                case "p90": return snapshot.getPercentile(90);
+                case "p99": return snapshot.getPercentile(99);
+                case "p999": return snapshot.getPercentile(99.9);
+                case "max": return snapshot.getMax();
+                default: break;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList values = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                values.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the interface expects
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("the metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (actionName.equals("format") && (params == null || params.length == 0)) {
+            return metrics.format();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> metric : metrics.getAll().entrySet()) {
+            if (metric.getValue() instanceof Histogram) {
+                for (String field : HISTOGRAM_FIELDS) {
+                    attributes.add(attribute(metric.getKey() + "." + field));
+                }
+            } else {
+                attributes.add(attribute(metric.getKey()));
+            }
+        }
+        MBeanOperationInfo format = new MBeanOperationInfo("format", "all the metrics as text", null,
+                String.class.getName(), MBeanOperationInfo.INFO);
+        return new MBeanInfo(getClass().getName(), "metrics of the STOMP server",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { format }, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name) {
+        return new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+    }
+}